@@ -3,11 +3,15 @@ package cn.edu.whu.lmars.toxicspider.crawler;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.http.Header;
 import org.apache.http.message.BasicHeader;
 
+import com.sleepycat.je.Durability;
+
 import cn.edu.whu.lmars.toxicspider.crawler.authentication.AuthInfo;
 
 /**
@@ -54,6 +58,117 @@ public class CrawlConfig {
 	 */
 	private int politenessDelay = 200;
 
+	/**
+	 * 抓取间隔（politenessDelay）的统计粒度。 false：按主机名统计，不同主机之间的抓取互不等待；
+	 * true：按注册域名（WebURL.getDomain()）统计，同一域名下的所有子域名共享一个抓取间隔。
+	 */
+	private boolean politenessPerDomain = false;
+
+	/**
+	 * 每个主机（按域名控制抓取间隔时为每个域名）同时进行的请求数上限，0 表示不限制（只由抓取间隔控制）。
+	 * 由 PolitenessServer 和 Frontier 控制，与连接池的 maxConnectionsPerHost 无关。
+	 */
+	private int maxRequestsPerHost = 0;
+
+	/**
+	 * 按主机模式覆盖 maxRequestsPerHost，按添加顺序使用第一个匹配的模式。
+	 * 模式中的 * 匹配任意字符，例如 "*.partner.com"；主机带端口时，模式可以带端口也可以不带。
+	 */
+	private Map<String, Integer> hostRequestLimits = new LinkedHashMap<>();
+
+	/**
+	 * 是否根据每个主机的响应时间和错误率自动调整抓取间隔和并发请求数（AutoThrottle）。
+	 * 开启后 politenessDelay 只是每个主机的初始间隔：响应正常时间隔趋向 响应时间 / autoThrottleTargetConcurrency，
+	 * 出现 5xx、429 或者连接错误时间隔加倍、并发数减半。间隔始终在 [autoThrottleMinDelay, autoThrottleMaxDelay] 之间。
+	 */
+	private boolean autoThrottle = false;
+
+	/**
+	 * 自动调整时每个主机的最小抓取间隔（毫秒）
+	 */
+	private int autoThrottleMinDelay = 0;
+
+	/**
+	 * 自动调整时每个主机的最大抓取间隔（毫秒）
+	 */
+	private int autoThrottleMaxDelay = 60000;
+
+	/**
+	 * 自动调整时希望每个主机平均同时进行的请求数
+	 */
+	private double autoThrottleTargetConcurrency = 1.0;
+
+	/**
+	 * 自动调整时每个主机同时进行的请求数上限。每个主机从1开始，连续成功一轮后加1，出错时减半。
+	 * 主机设置了 maxRequestsPerHost 或者匹配 hostRequestLimits 时以它们为上限
+	 */
+	private int autoThrottleMaxConcurrency = 8;
+
+	/**
+	 * 是否按主机分组分配任务：一个线程每次从一个到期的主机取出一组连续的URL，而不是每个主机只取一个，
+	 * 线程可以在同一个保持连接（keep-alive）上依次抓取这些URL。
+	 */
+	private boolean hostAffinityBatching = false;
+
+	/**
+	 * 按主机分组时，一个线程连续抓取同一主机的时间（毫秒）。每组的URL数为 hostAffinityWindow / politenessDelay
+	 */
+	private int hostAffinityWindow = 10000;
+
+	/**
+	 * Frontier 在内存中按主机划分的任务缓冲区大小。 任务队列中的URL会按此大小成批读入各主机的子队列，
+	 * 只有到了抓取时间的主机才会被分配任务。
+	 */
+	private int frontierBufferSize = 5000;
+
+	/**
+	 * Frontier 内存缓冲区的分片数量。同一主机的URL在同一个分片中，不同分片的任务分配互不阻塞，
+	 * 爬虫线程较多时可以减少锁竞争。
+	 */
+	private int frontierShards = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * 分配给爬虫线程的任务的租约时间（毫秒）。线程超过此时间没有处理完任何一个任务时，
+	 * 它手上未完成的任务会重新分配给其他线程；爬虫线程意外停止时立即重新分配。设置为0则不使用租约。
+	 */
+	private int frontierLeaseTimeout = 300000;
+
+	/**
+	 * 不可恢复的爬取中，任务队列在内存中保存的最大任务数量，超出的部分写入数据库，需要时再批量读回。
+	 * 设置为0则所有任务都存储在数据库中。可恢复的爬取总是存储在数据库中。
+	 */
+	private int frontierMemoryCapacity = 100000;
+
+	/**
+	 * 任务队列的存储方式
+	 */
+	public enum FrontierStorage {
+		/**
+		 * Berkeley DB JE 数据库
+		 */
+		BERKELEY_DB,
+		/**
+		 * 内存映射的追加日志段文件，存储在 crawlStorageFolder/frontier-log 中
+		 */
+		MAPPED_LOG
+	}
+
+	/**
+	 * 任务队列（包括可恢复模式下正在处理的任务）的存储方式
+	 */
+	private FrontierStorage frontierStorage = FrontierStorage.BERKELEY_DB;
+
+	/**
+	 * frontierStorage 为 MAPPED_LOG 时每个段文件的大小（字节）
+	 */
+	private int frontierLogSegmentSize = 64 * 1024 * 1024;
+
+	/**
+	 * 任务队列中是否保存父页面的URL。设置为 false 可以明显减小任务队列占用的空间，
+	 * 此时从队列中取出的 WebURL 的 getParentUrl() 为null，getParentDocid() 不受影响。
+	 */
+	private boolean frontierStoresParentUrl = true;
+
 	/**
 	 * 是否抓取https 开头的网站。 这种网站为加密网站。比如一些涉及支付的网页。
 	 */
@@ -79,6 +194,24 @@ public class CrawlConfig {
 	 */
 	private int maxTotalConnections = 100;
 
+	/**
+	 * 异步抓取（AsyncPageFetcher）使用的 I/O 线程数。
+	 */
+	private int asyncIoThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * 异步抓取（AsyncPageFetcher）同时进行中的最大请求数。 超过此数量时提交新请求的线程会等待。
+	 * 异步连接池的总连接数也按此值设置。
+	 */
+	private int maxInFlightRequests = 10000;
+
+	/**
+	 * 爬虫线程是否异步抓取（需要使用 AsyncPageFetcher）。开启后爬虫线程一次发出取到的整批请求，
+	 * 在请求完成时依次处理（开启流水线时交给解析阶段），同时进行中的请求数不再受爬虫线程数限制，
+	 * 最多为 爬虫线程数 × crawlerBatchSize，并且不超过 maxInFlightRequests。
+	 */
+	private boolean useAsyncFetching = false;
+
 	/**
 	 * Socket 超时时间
 	 */
@@ -99,6 +232,12 @@ public class CrawlConfig {
 	 */
 	private int maxDownloadSize = 1048576;
 
+	/**
+	 * 网页内容超过 maxDownloadSize 时是否截断。
+	 * FALSE：放弃这个网页；TRUE：保留前 maxDownloadSize 字节继续解析，超出的部分不再下载。
+	 */
+	private boolean truncateOversizedContent = false;
+
 	/**
 	 * 是否抓取重定向的链接？
 	 */
@@ -111,6 +250,100 @@ public class CrawlConfig {
 	 */
 	private boolean onlineTldListUpdate = false;
 
+	/**
+	 * DocIDServer 是否以URL指纹（主机哈希 + 64 位URL指纹，共 12 字节）代替完整的URL作为数据库的key。
+	 * 可以大幅缩小索引，使数据库缓存容纳更多的URL。 恢复以完整URL为key的旧爬虫时，会在启动时自动迁移。
+	 */
+	private boolean fingerprintDocIdKeys = false;
+
+	/**
+	 * DocIDServer 前置布隆过滤器预计容纳的URL数量，用于一定不存在的URL直接跳过数据库查询。 设置为0则不使用布隆过滤器。
+	 * 实际URL数量超过此值后过滤器仍然正确，但误判率会升高。
+	 */
+	private int seenUrlFilterExpectedUrls = 1000000;
+
+	/**
+	 * DocIDServer 前置布隆过滤器的期望误判率。
+	 */
+	private double seenUrlFilterFalsePositiveRate = 0.01;
+
+	/**
+	 * 是否在虚拟线程中运行爬虫实例（需要 Java 21 及以上版本，否则使用普通线程）。
+	 * 对于主要耗时在网络等待上的爬取，虚拟线程可以支持上万个爬虫实例同时运行。
+	 */
+	private boolean useVirtualThreads = false;
+
+	/**
+	 * 是否使用 DRUM 方式对子链接进行批量去重。
+	 * 子链接先按指纹分桶缓存并顺序写入磁盘，积累到一定数量后再与已见URL的有序指纹文件归并，
+	 * 只为归并后新的URL批量分配docID，避免已见URL集合超过内存之后每个子链接都产生一次随机磁盘读。
+	 * 开启后不再逐个查询子链接的docID：ParseData 中子链接的docID都为-1、深度都为父网页深度加一，
+	 * 已经见过的子链接也会调用 shouldVisit 并检查 robots.txt。
+	 */
+	private boolean useDrumDeduplication = false;
+
+	/**
+	 * 可恢复模式下数据库事务提交时的同步策略：
+	 * SYNC 每次提交都写入并刷新到磁盘；WRITE_NO_SYNC 写入操作系统缓存，进程崩溃不丢失数据，
+	 * 但操作系统崩溃可能丢失最近的提交；NO_SYNC 只写入 JE 的日志缓冲区。
+	 */
+	private Durability.SyncPolicy commitSyncPolicy = Durability.SyncPolicy.SYNC;
+
+	/**
+	 * DRUM 的桶数量
+	 */
+	private int drumBuckets = 16;
+
+	/**
+	 * DRUM 每个桶在内存中缓存的URL数量，超过后追加写入磁盘
+	 */
+	private int drumBucketBufferSize = 1000;
+
+	/**
+	 * 待去重的URL达到此数量时触发一次合并
+	 */
+	private int drumMergeThreshold = 50000;
+
+	/**
+	 * 两次合并之间的最长间隔（毫秒），保证URL量少时新的URL也能及时进入任务队列
+	 */
+	private int drumMaxMergeDelay = 5000;
+
+	/**
+	 * 是否使用流水线处理页面：爬虫线程只负责抓取和下载内容，解析交给解析阶段的线程池，
+	 * 子链接处理（docID、robots.txt、调度）和 visit 交给链接处理阶段的线程池，各阶段之间是有界队列。
+	 * 开启后 visit 和子链接的 shouldVisit 在链接处理线程中调用。同一个爬虫实例的链接处理任务总是交给同一个线程，
+	 * 因此这些回调不会互相并发，但可能与爬虫线程中的其他回调同时执行（见 WebCrawler#visit）。
+	 */
+	private boolean usePipelinedProcessing = false;
+
+	/**
+	 * 流水线解析阶段的线程数
+	 */
+	private int pipelineParseThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * 流水线链接处理阶段的线程数
+	 */
+	private int pipelineLinkThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * 流水线每个阶段的队列容量，队列满时上一阶段的线程等待
+	 */
+	private int pipelineQueueSize = 100;
+
+	/**
+	 * 爬虫线程每次从任务队列中获取的最大任务数。实际数量根据队列长度和线程数调整：
+	 * 队列中的任务平均分给各线程，不超过此值，队列很短时每个线程只取少量任务，不会由个别线程占住所有任务
+	 */
+	private int crawlerBatchSize = 50;
+
+	/**
+	 * 是否在爬虫线程之间窃取任务。开启后每个线程把取到的任务放在自己的本地队列中，
+	 * 空闲的线程从最长的本地队列尾部取走一半还未开始的任务，避免一个慢速主机拖住同批的其他任务
+	 */
+	private boolean useWorkStealing = false;
+
 	/**
 	 * 当工作队列 workQuene为空的时候，是否停止爬虫程序
 	 */
@@ -154,6 +387,53 @@ public class CrawlConfig {
 		if (politenessDelay < 0) {
 			throw new Exception("Invalid value for politeness delay: " + politenessDelay);
 		}
+		if (maxInFlightRequests <= 0) {
+			throw new Exception("Max in-flight requests should be a positive number: " + maxInFlightRequests);
+		}
+		if (maxDownloadSize <= 0) {
+			throw new Exception("Max download size should be a positive number: " + maxDownloadSize);
+		}
+		if (maxRequestsPerHost < 0) {
+			throw new Exception("Maximum requests per host should not be negative: " + maxRequestsPerHost);
+		}
+		for (Map.Entry<String, Integer> limit : hostRequestLimits.entrySet()) {
+			if ((limit.getValue() == null) || (limit.getValue() < 0)) {
+				throw new Exception("Invalid request limit for host pattern " + limit.getKey() + ": " + limit.getValue());
+			}
+		}
+		if (autoThrottle && ((autoThrottleMinDelay < 0) || (autoThrottleMaxDelay < autoThrottleMinDelay))) {
+			throw new Exception("Invalid auto throttle delay range: [" + autoThrottleMinDelay + ", " +
+					autoThrottleMaxDelay + "]");
+		}
+		if (autoThrottle && ((autoThrottleTargetConcurrency <= 0) || (autoThrottleMaxConcurrency <= 0))) {
+			throw new Exception("Auto throttle target and maximum concurrency should be positive numbers.");
+		}
+		if (hostAffinityBatching && (hostAffinityWindow <= 0)) {
+			throw new Exception("Host affinity window should be a positive number: " + hostAffinityWindow);
+		}
+		if (frontierBufferSize <= 0) {
+			throw new Exception("Frontier buffer size should be a positive number: " + frontierBufferSize);
+		}
+		if (frontierShards <= 0) {
+			throw new Exception("Number of frontier shards should be a positive number: " + frontierShards);
+		}
+		if ((seenUrlFilterFalsePositiveRate <= 0) || (seenUrlFilterFalsePositiveRate >= 1)) {
+			throw new Exception("Seen URL filter false positive rate should be in (0, 1): " + seenUrlFilterFalsePositiveRate);
+		}
+		if ((frontierStorage == FrontierStorage.MAPPED_LOG) && (frontierLogSegmentSize <= 0)) {
+			throw new Exception("Frontier log segment size should be a positive number: " + frontierLogSegmentSize);
+		}
+		if (useDrumDeduplication && ((drumBuckets <= 0) || (drumBucketBufferSize <= 0) || (drumMergeThreshold <= 0) ||
+				(drumMaxMergeDelay <= 0))) {
+			throw new Exception("DRUM buckets, buffer size, merge threshold and merge delay should be positive numbers.");
+		}
+		if (usePipelinedProcessing && ((pipelineParseThreads <= 0) || (pipelineLinkThreads <= 0) ||
+				(pipelineQueueSize <= 0))) {
+			throw new Exception("Pipeline thread counts and queue size should be positive numbers.");
+		}
+		if (crawlerBatchSize <= 0) {
+			throw new Exception("Crawler batch size should be a positive number: " + crawlerBatchSize);
+		}
 		if (maxDepthOfCrawling < -1) {
 			throw new Exception("Maximum crawl depth should be either a positive number or -1 for unlimited depth.");
 		}
@@ -222,6 +502,149 @@ public class CrawlConfig {
 		this.politenessDelay = politenessDelay;
 	}
 
+	public boolean isPolitenessPerDomain() {
+		return politenessPerDomain;
+	}
+
+	public void setPolitenessPerDomain(boolean politenessPerDomain) {
+		this.politenessPerDomain = politenessPerDomain;
+	}
+
+	public int getMaxRequestsPerHost() {
+		return maxRequestsPerHost;
+	}
+
+	public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+		this.maxRequestsPerHost = maxRequestsPerHost;
+	}
+
+	public Map<String, Integer> getHostRequestLimits() {
+		return hostRequestLimits;
+	}
+
+	/**
+	 * 为匹配 hostPattern 的主机设置同时进行的请求数上限，0 表示不限制
+	 */
+	public void addHostRequestLimit(String hostPattern, int maxRequests) {
+		hostRequestLimits.put(hostPattern, maxRequests);
+	}
+
+	public void setHostRequestLimits(Map<String, Integer> hostRequestLimits) {
+		this.hostRequestLimits = hostRequestLimits;
+	}
+
+	public boolean isAutoThrottle() {
+		return autoThrottle;
+	}
+
+	public void setAutoThrottle(boolean autoThrottle) {
+		this.autoThrottle = autoThrottle;
+	}
+
+	public int getAutoThrottleMinDelay() {
+		return autoThrottleMinDelay;
+	}
+
+	public void setAutoThrottleMinDelay(int autoThrottleMinDelay) {
+		this.autoThrottleMinDelay = autoThrottleMinDelay;
+	}
+
+	public int getAutoThrottleMaxDelay() {
+		return autoThrottleMaxDelay;
+	}
+
+	public void setAutoThrottleMaxDelay(int autoThrottleMaxDelay) {
+		this.autoThrottleMaxDelay = autoThrottleMaxDelay;
+	}
+
+	public double getAutoThrottleTargetConcurrency() {
+		return autoThrottleTargetConcurrency;
+	}
+
+	public void setAutoThrottleTargetConcurrency(double autoThrottleTargetConcurrency) {
+		this.autoThrottleTargetConcurrency = autoThrottleTargetConcurrency;
+	}
+
+	public int getAutoThrottleMaxConcurrency() {
+		return autoThrottleMaxConcurrency;
+	}
+
+	public void setAutoThrottleMaxConcurrency(int autoThrottleMaxConcurrency) {
+		this.autoThrottleMaxConcurrency = autoThrottleMaxConcurrency;
+	}
+
+	public boolean isHostAffinityBatching() {
+		return hostAffinityBatching;
+	}
+
+	public void setHostAffinityBatching(boolean hostAffinityBatching) {
+		this.hostAffinityBatching = hostAffinityBatching;
+	}
+
+	public int getHostAffinityWindow() {
+		return hostAffinityWindow;
+	}
+
+	public void setHostAffinityWindow(int hostAffinityWindow) {
+		this.hostAffinityWindow = hostAffinityWindow;
+	}
+
+	public int getFrontierBufferSize() {
+		return frontierBufferSize;
+	}
+
+	public void setFrontierBufferSize(int frontierBufferSize) {
+		this.frontierBufferSize = frontierBufferSize;
+	}
+
+	public FrontierStorage getFrontierStorage() {
+		return frontierStorage;
+	}
+
+	public void setFrontierStorage(FrontierStorage frontierStorage) {
+		this.frontierStorage = frontierStorage;
+	}
+
+	public int getFrontierLogSegmentSize() {
+		return frontierLogSegmentSize;
+	}
+
+	public void setFrontierLogSegmentSize(int frontierLogSegmentSize) {
+		this.frontierLogSegmentSize = frontierLogSegmentSize;
+	}
+
+	public boolean isFrontierStoresParentUrl() {
+		return frontierStoresParentUrl;
+	}
+
+	public void setFrontierStoresParentUrl(boolean frontierStoresParentUrl) {
+		this.frontierStoresParentUrl = frontierStoresParentUrl;
+	}
+
+	public int getFrontierShards() {
+		return frontierShards;
+	}
+
+	public void setFrontierShards(int frontierShards) {
+		this.frontierShards = frontierShards;
+	}
+
+	public int getFrontierLeaseTimeout() {
+		return frontierLeaseTimeout;
+	}
+
+	public void setFrontierLeaseTimeout(int frontierLeaseTimeout) {
+		this.frontierLeaseTimeout = frontierLeaseTimeout;
+	}
+
+	public int getFrontierMemoryCapacity() {
+		return frontierMemoryCapacity;
+	}
+
+	public void setFrontierMemoryCapacity(int frontierMemoryCapacity) {
+		this.frontierMemoryCapacity = frontierMemoryCapacity;
+	}
+
 	public boolean isIncludeHttpsPages() {
 		return includeHttpsPages;
 	}
@@ -262,6 +685,30 @@ public class CrawlConfig {
 		this.maxTotalConnections = maxTotalConnections;
 	}
 
+	public int getAsyncIoThreads() {
+		return asyncIoThreads;
+	}
+
+	public void setAsyncIoThreads(int asyncIoThreads) {
+		this.asyncIoThreads = asyncIoThreads;
+	}
+
+	public int getMaxInFlightRequests() {
+		return maxInFlightRequests;
+	}
+
+	public void setMaxInFlightRequests(int maxInFlightRequests) {
+		this.maxInFlightRequests = maxInFlightRequests;
+	}
+
+	public boolean isUseAsyncFetching() {
+		return useAsyncFetching;
+	}
+
+	public void setUseAsyncFetching(boolean useAsyncFetching) {
+		this.useAsyncFetching = useAsyncFetching;
+	}
+
 	public int getSocketTimeout() {
 		return socketTimeout;
 	}
@@ -294,6 +741,14 @@ public class CrawlConfig {
 		this.maxDownloadSize = maxDownloadSize;
 	}
 
+	public boolean isTruncateOversizedContent() {
+		return truncateOversizedContent;
+	}
+
+	public void setTruncateOversizedContent(boolean truncateOversizedContent) {
+		this.truncateOversizedContent = truncateOversizedContent;
+	}
+
 	public boolean isFollowRedirects() {
 		return followRedirects;
 	}
@@ -310,6 +765,134 @@ public class CrawlConfig {
 		shutdownOnEmptyQueue = shutdown;
 	}
 
+	public boolean isFingerprintDocIdKeys() {
+		return fingerprintDocIdKeys;
+	}
+
+	public void setFingerprintDocIdKeys(boolean fingerprintDocIdKeys) {
+		this.fingerprintDocIdKeys = fingerprintDocIdKeys;
+	}
+
+	public int getSeenUrlFilterExpectedUrls() {
+		return seenUrlFilterExpectedUrls;
+	}
+
+	public void setSeenUrlFilterExpectedUrls(int seenUrlFilterExpectedUrls) {
+		this.seenUrlFilterExpectedUrls = seenUrlFilterExpectedUrls;
+	}
+
+	public double getSeenUrlFilterFalsePositiveRate() {
+		return seenUrlFilterFalsePositiveRate;
+	}
+
+	public void setSeenUrlFilterFalsePositiveRate(double seenUrlFilterFalsePositiveRate) {
+		this.seenUrlFilterFalsePositiveRate = seenUrlFilterFalsePositiveRate;
+	}
+
+	public boolean isUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads;
+	}
+
+	public Durability.SyncPolicy getCommitSyncPolicy() {
+		return commitSyncPolicy;
+	}
+
+	public void setCommitSyncPolicy(Durability.SyncPolicy commitSyncPolicy) {
+		this.commitSyncPolicy = commitSyncPolicy;
+	}
+
+	public boolean isUseDrumDeduplication() {
+		return useDrumDeduplication;
+	}
+
+	public void setUseDrumDeduplication(boolean useDrumDeduplication) {
+		this.useDrumDeduplication = useDrumDeduplication;
+	}
+
+	public int getDrumBuckets() {
+		return drumBuckets;
+	}
+
+	public void setDrumBuckets(int drumBuckets) {
+		this.drumBuckets = drumBuckets;
+	}
+
+	public int getDrumBucketBufferSize() {
+		return drumBucketBufferSize;
+	}
+
+	public void setDrumBucketBufferSize(int drumBucketBufferSize) {
+		this.drumBucketBufferSize = drumBucketBufferSize;
+	}
+
+	public int getDrumMergeThreshold() {
+		return drumMergeThreshold;
+	}
+
+	public void setDrumMergeThreshold(int drumMergeThreshold) {
+		this.drumMergeThreshold = drumMergeThreshold;
+	}
+
+	public int getDrumMaxMergeDelay() {
+		return drumMaxMergeDelay;
+	}
+
+	public void setDrumMaxMergeDelay(int drumMaxMergeDelay) {
+		this.drumMaxMergeDelay = drumMaxMergeDelay;
+	}
+
+	public boolean isUsePipelinedProcessing() {
+		return usePipelinedProcessing;
+	}
+
+	public void setUsePipelinedProcessing(boolean usePipelinedProcessing) {
+		this.usePipelinedProcessing = usePipelinedProcessing;
+	}
+
+	public int getPipelineParseThreads() {
+		return pipelineParseThreads;
+	}
+
+	public void setPipelineParseThreads(int pipelineParseThreads) {
+		this.pipelineParseThreads = pipelineParseThreads;
+	}
+
+	public int getPipelineLinkThreads() {
+		return pipelineLinkThreads;
+	}
+
+	public void setPipelineLinkThreads(int pipelineLinkThreads) {
+		this.pipelineLinkThreads = pipelineLinkThreads;
+	}
+
+	public int getPipelineQueueSize() {
+		return pipelineQueueSize;
+	}
+
+	public void setPipelineQueueSize(int pipelineQueueSize) {
+		this.pipelineQueueSize = pipelineQueueSize;
+	}
+
+	public int getCrawlerBatchSize() {
+		return crawlerBatchSize;
+	}
+
+	public void setCrawlerBatchSize(int crawlerBatchSize) {
+		this.crawlerBatchSize = crawlerBatchSize;
+	}
+
+	public boolean isUseWorkStealing() {
+		return useWorkStealing;
+	}
+
+	public void setUseWorkStealing(boolean useWorkStealing) {
+		this.useWorkStealing = useWorkStealing;
+	}
+
 	public boolean isOnlineTldListUpdate() {
 		return onlineTldListUpdate;
 	}
@@ -374,14 +957,18 @@ public class CrawlConfig {
 		sb.append("Max depth of crawl: " + getMaxDepthOfCrawling() + "\n");
 		sb.append("Max pages to fetch: " + getMaxPagesToFetch() + "\n");
 		sb.append("User agent string: " + getUserAgentString() + "\n");
+		sb.append("Politeness delay: " + getPolitenessDelay() + "\n");
+		sb.append("Politeness per domain: " + isPolitenessPerDomain() + "\n");
 		sb.append("Include https pages: " + isIncludeHttpsPages() + "\n");
 		sb.append("Include binary content: " + isIncludeBinaryContentInCrawling() + "\n");
 		sb.append("Max connections per host: " + getMaxConnectionsPerHost() + "\n");
 		sb.append("Max total connections: " + getMaxTotalConnections() + "\n");
 		sb.append("Socket timeout: " + getSocketTimeout() + "\n");
+		sb.append("Async fetching: " + isUseAsyncFetching() + "\n");
 		sb.append("Max total connections: " + getMaxTotalConnections() + "\n");
 		sb.append("Max outgoing links to follow: " + getMaxOutgoingLinksToFollow() + "\n");
 		sb.append("Max download size: " + getMaxDownloadSize() + "\n");
+		sb.append("Truncate oversized content: " + isTruncateOversizedContent() + "\n");
 		sb.append("Should follow redirects?: " + isFollowRedirects() + "\n");
 		sb.append("Proxy host: " + getProxyHost() + "\n");
 		sb.append("Proxy port: " + getProxyPort() + "\n");
@@ -3,15 +3,19 @@ package cn.edu.whu.lmars.toxicspider.crawler;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 
+import cn.edu.whu.lmars.toxicspider.fetcher.AsyncPageFetcher;
 import cn.edu.whu.lmars.toxicspider.fetcher.PageFetcher;
 import cn.edu.whu.lmars.toxicspider.frontier.DocIDServer;
+import cn.edu.whu.lmars.toxicspider.frontier.DrumDeduplicator;
 import cn.edu.whu.lmars.toxicspider.frontier.Frontier;
 import cn.edu.whu.lmars.toxicspider.robotstxt.RobotstxtServer;
 import cn.edu.whu.lmars.toxicspider.url.TLDList;
@@ -29,6 +33,9 @@ public class CrawlController extends Configurable {
 
   static final Logger logger = LoggerFactory.getLogger(CrawlController.class);
 
+  //监视线程检查爬虫线程的间隔，以及结束时等待爬虫线程退出的最长时间（毫秒）
+  private static final long MONITOR_INTERVAL = 10000;
+
   /**
    * customData 用于自定义配置，可以传递到其他爬取相关的组件。
    */
@@ -48,12 +55,25 @@ public class CrawlController extends Configurable {
    * 这次爬行会话是否设置为 'shutdown'. 
    * 爬虫线程会监视这个标志，如果设置为shutdown，则爬虫不会在处理新的页面。
    */
-  protected boolean shuttingDown;
+  protected volatile boolean shuttingDown;
 
   protected PageFetcher pageFetcher; //网页抓取器
   protected RobotstxtServer robotstxtServer; //robotstext探测器
   protected Frontier frontier;  //URL队列管理器，管理Berkeley DB中的URL
   protected DocIDServer docIdServer; //文档ID管理器，管理URL 的ID编号
+  protected DrumDeduplicator drumDeduplicator; //子链接批量去重，未开启 useDrumDeduplication 时为null
+  protected CrawlPipeline pipeline; //页面处理流水线，未开启 usePipelinedProcessing 时为null
+  protected WorkStealingQueues workStealingQueues; //爬虫线程的本地任务队列，未开启 useWorkStealing 时为null
+
+  /**
+   * 当前会话的爬虫线程数，爬虫线程据此调整每次获取的任务数
+   */
+  protected int numberOfCrawlers;
+
+  /**
+   * 创建爬虫线程的工厂。默认创建普通线程，开启 useVirtualThreads 时创建虚拟线程。
+   */
+  protected ThreadFactory crawlerThreadFactory;
 
   protected final Object waitingLock = new Object();
   protected final Environment env;
@@ -70,6 +90,9 @@ public class CrawlController extends Configurable {
     super(config);
 
     config.validate(); //对设置的爬取深度，最大爬取连接数，存储目录是否设置进行验证
+    if (config.isUseAsyncFetching() && !(pageFetcher instanceof AsyncPageFetcher)) {
+      throw new Exception("Async fetching requires an AsyncPageFetcher, got " + pageFetcher.getClass().getName());
+    }
     File folder = new File(config.getCrawlStorageFolder());
     if (!folder.exists()) {
       if (folder.mkdirs()) {
@@ -88,6 +111,10 @@ public class CrawlController extends Configurable {
     envConfig.setAllowCreate(true);
     envConfig.setTransactional(resumable);
     envConfig.setLocking(resumable);
+    if (resumable) {
+      envConfig.setDurability(new Durability(config.getCommitSyncPolicy(), Durability.SyncPolicy.NO_SYNC,
+                                             Durability.ReplicaAckPolicy.NONE));
+    }
 
     File envHome = new File(config.getCrawlStorageFolder() + "/frontier"); //数据存储路径
     if (!envHome.exists()) {
@@ -109,14 +136,66 @@ public class CrawlController extends Configurable {
     env = new Environment(envHome, envConfig);
     docIdServer = new DocIDServer(env, config); //实例化DocIDServer
     frontier = new Frontier(env, config); //实例化URL管理对象
+    if (config.isUseDrumDeduplication()) {
+      drumDeduplicator = new DrumDeduplicator(config, docIdServer, frontier);
+    }
+    if (config.isUsePipelinedProcessing()) {
+      pipeline = new CrawlPipeline(config);
+    }
+    if (config.isUseWorkStealing()) {
+      workStealingQueues = new WorkStealingQueues();
+    }
 
     this.pageFetcher = pageFetcher;
     this.robotstxtServer = robotstxtServer;
+    if (config.isAutoThrottle() || (config.getMaxRequestsPerHost() > 0) || !config.getHostRequestLimits().isEmpty()) {
+      //按主机调整的抓取间隔和并发名额同时决定 Frontier 何时把此主机的任务分配出去
+      frontier.setHostPolicy(pageFetcher.getPolitenessServer());
+    }
+    this.crawlerThreadFactory = newCrawlerThreadFactory();
 
     finished = false;
     shuttingDown = false;
   }
 
+  /**
+   * 创建默认的爬虫线程工厂。
+   * 开启 useVirtualThreads 且运行在 Java 21 及以上版本时，通过反射获取虚拟线程工厂
+   * （编译目标仍为 Java 7），否则创建普通线程。
+   * @return 线程工厂
+   */
+  protected ThreadFactory newCrawlerThreadFactory() {
+    if (config.isUseVirtualThreads()) {
+      try {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        ThreadFactory factory =
+            (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        logger.info("Crawlers will run on virtual threads");
+        return factory;
+      } catch (ReflectiveOperationException e) {
+        logger.warn("Virtual threads are not supported by this JVM, using platform threads instead");
+      }
+    }
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r);
+      }
+    };
+  }
+
+  /**
+   * 为爬虫实例创建（但不启动）线程。
+   * @param crawler 爬虫实例
+   * @param id 爬虫编号
+   * @return 爬虫线程
+   */
+  protected Thread newCrawlerThread(WebCrawler crawler, int id) {
+    Thread thread = crawlerThreadFactory.newThread(crawler);
+    thread.setName("Crawler " + id);
+    return thread;
+  }
+
   /**
    * 内部爬虫工厂类接口
    * @author REN
@@ -215,12 +294,13 @@ public class CrawlController extends Configurable {
     try {
       finished = false;
       crawlersLocalData.clear();
+      this.numberOfCrawlers = numberOfCrawlers;
       final List<Thread> threads = new ArrayList<>(); //爬虫线程集合
       final List<T> crawlers = new ArrayList<>(); //爬虫集合
 
       for (int i = 1; i <= numberOfCrawlers; i++) {
         T crawler = crawlerFactory.newInstance();
-        Thread thread = new Thread(crawler, "Crawler " + i); //每个爬虫创建一个线程
+        Thread thread = newCrawlerThread(crawler, i); //每个爬虫创建一个线程
         crawler.setThread(thread);
         crawler.init(i, this);
         thread.start();
@@ -242,15 +322,30 @@ public class CrawlController extends Configurable {
             synchronized (waitingLock) {
 
               while (true) {
-                sleep(10); //每隔10秒检查一次
-                boolean someoneIsWorking = false; //是否有线程在运行
+                boolean shut_on_empty = config.isShutdownOnEmptyQueue(); //workQueue为空的时候是否停止爬虫
+                boolean idle = false;
+                if (shut_on_empty) {
+                  //爬取进入空闲状态（没有处理中的任务且队列为空）或者被要求停止时立即醒来，否则每隔10秒检查一次线程
+                  idle = frontier.awaitIdle(MONITOR_INTERVAL);
+                } else {
+                  sleep(10);
+                }
+                if ((pipeline != null) && logger.isDebugEnabled()) {
+                  for (CrawlPipeline.Stage stage : pipeline.getStages()) {
+                    logger.debug("{}", stage);
+                  }
+                }
                 for (int i = 0; i < threads.size(); i++) {
                   Thread thread = threads.get(i);
                   if (!thread.isAlive()) {
                     if (!shuttingDown) {
                       logger.info("Thread {} was dead, I'll recreate it", i);
+                      int released = frontier.releaseLease(thread); //停止的线程未完成的任务交给其他线程
+                      if (released > 0) {
+                        logger.info("Rescheduled {} unfinished URLs of thread {}", released, i);
+                      }
                       T crawler = crawlerFactory.newInstance();
-                      thread = new Thread(crawler, "Crawler " + (i + 1));
+                      thread = newCrawlerThread(crawler, i + 1);
                       threads.remove(i);
                       threads.add(i, thread);
                       crawler.setThread(thread);
@@ -259,67 +354,59 @@ public class CrawlController extends Configurable {
                       crawlers.remove(i);
                       crawlers.add(i, crawler);
                     }
-                  } else if (crawlers.get(i).isNotWaitingForNewURLs()) {
-                    someoneIsWorking = true;
                   }
                 }
-                boolean shut_on_empty = config.isShutdownOnEmptyQueue(); //workQueue为空的时候是否停止爬虫
-                if (!someoneIsWorking && shut_on_empty) { //如果没有正在运行的爬虫，且workQueue为空的时候停止
-                  /*
-                   * 确保没有正常工作的线程了。
-                   * 	等待十秒，如果这个过程有其他未完成的线程又爬取到了新的URL并且添加到了任务中，这个时候就可以正确工作了。
-                   */
-                  logger.info("It looks like no thread is working, waiting for 10 seconds to make sure...");
-                  sleep(10); 
-
-                  someoneIsWorking = false;
-                  /**
-                   * 再次扫描所有线程，确保没有正常工作的线程了。
-                   */
-                  for (int i = 0; i < threads.size(); i++) {
-                    Thread thread = threads.get(i);
-                    if (thread.isAlive() && crawlers.get(i).isNotWaitingForNewURLs()) {
-                      someoneIsWorking = true;
-                    }
-                  }
-                  if (!someoneIsWorking) {
-                    if (!shuttingDown) {
-                      long queueLength = frontier.getQueueLength(); //检查是否有新的URL添加到Queue中
-                      if (queueLength > 0) {
-                        continue;
-                      }
-                      logger.info(
-                          "No thread is working and no more URLs are in queue waiting for another 10 seconds to make " +
-                          "sure...");
-                      sleep(10); //再等待十秒钟确认
-                      queueLength = frontier.getQueueLength();
-                      if (queueLength > 0) {
-                        continue;
-                      }
-                    }
 
-                    logger.info("All of the crawlers are stopped. Finishing the process...");
-                    // 告知那些等待添加新的URL的线程，没有URL了，可以停止了。
-                    frontier.finish();
-                    for (T crawler : crawlers) {
-                      crawler.onBeforeExit();
-                      crawlersLocalData.add(crawler.getMyLocalData()); //线程爬取过程数据存储
-                    }
+                if (!shuttingDown) {
+                  if (!idle) {
+                    continue;
+                  }
+                  //DRUM 中尚未去重的URL也是待处理的任务，合并之后再检查队列
+                  if ((drumDeduplicator != null) && (drumDeduplicator.getPendingCount() > 0)) {
+                    drumDeduplicator.flush();
+                    continue;
+                  }
+                  if (!frontier.isIdle()) {
+                    continue;
+                  }
+                  logger.info("No URLs are in process or in queue. Finishing the process...");
+                } else {
+                  logger.info("Shutting down. Finishing the process...");
+                }
 
-                    logger.info("Waiting for 10 seconds before final clean up...");
-                    sleep(10);
+                // 告知那些等待添加新的URL的线程，没有URL了，可以停止了。
+                frontier.finish();
+                //等待爬虫线程处理完手中的页面后退出，最多等待10秒
+                long deadline = System.currentTimeMillis() + MONITOR_INTERVAL;
+                for (Thread thread : threads) {
+                  long remaining = deadline - System.currentTimeMillis();
+                  if (remaining > 0) {
+                    thread.join(remaining);
+                  }
+                }
+                if (pipeline != null) {
+                  pipeline.close(MONITOR_INTERVAL);
+                }
+                if (workStealingQueues != null) {
+                  logger.info("{} URLs were stolen between crawlers", workStealingQueues.getStolenURLs());
+                }
+                for (T crawler : crawlers) {
+                  crawler.onBeforeExit();
+                  crawlersLocalData.add(crawler.getMyLocalData()); //线程爬取过程数据存储
+                }
 
-                    frontier.close();
-                    docIdServer.close();
-                    pageFetcher.shutDown();
+                if (drumDeduplicator != null) {
+                  drumDeduplicator.close();
+                }
+                frontier.close();
+                docIdServer.close();
+                pageFetcher.shutDown();
 
-                    finished = true;
-                    waitingLock.notifyAll(); //叫醒主线程可以结束了
-                    env.close();
+                finished = true;
+                waitingLock.notifyAll(); //叫醒主线程可以结束了
+                env.close();
 
-                    return;
-                  }
-                }
+                return;
               }
             }
           } catch (Exception e) {
@@ -461,6 +548,18 @@ public class CrawlController extends Configurable {
     }
   }
 
+  public ThreadFactory getCrawlerThreadFactory() {
+    return crawlerThreadFactory;
+  }
+
+  /**
+   * 设置创建爬虫线程的工厂，需要在 start 之前调用。
+   * @param crawlerThreadFactory
+   */
+  public void setCrawlerThreadFactory(ThreadFactory crawlerThreadFactory) {
+    this.crawlerThreadFactory = crawlerThreadFactory;
+  }
+
   public PageFetcher getPageFetcher() {
     return pageFetcher;
   }
@@ -493,6 +592,22 @@ public class CrawlController extends Configurable {
     this.docIdServer = docIdServer;
   }
 
+  public DrumDeduplicator getDrumDeduplicator() {
+    return drumDeduplicator;
+  }
+
+  public CrawlPipeline getPipeline() {
+    return pipeline;
+  }
+
+  public WorkStealingQueues getWorkStealingQueues() {
+    return workStealingQueues;
+  }
+
+  public int getNumberOfCrawlers() {
+    return numberOfCrawlers;
+  }
+
   public Object getCustomData() {
     return customData;
   }
@@ -515,6 +630,7 @@ public class CrawlController extends Configurable {
   public void shutdown() {
     logger.info("Shutting down...");
     this.shuttingDown = true;
+    frontier.wakeUpIdleWaiters(); //监视线程立即开始结束爬取
     pageFetcher.shutDown();
     frontier.finish();
   }
@@ -0,0 +1,360 @@
+package cn.edu.whu.lmars.toxicspider.crawler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cn.edu.whu.lmars.toxicspider.parser.Parser;
+
+/**
+ * 页面处理流水线。
+ * 爬虫线程抓取并下载页面内容后，把页面交给解析阶段；解析完成后交给链接处理阶段（子链接的docID、robots.txt、调度和 visit）。
+ * 每个阶段有固定数量的线程和有界队列，队列满时上一阶段的线程等待，因此下载速度不会超过解析和调度的速度。
+ * 链接处理阶段的每个线程有自己的队列，同一个爬虫实例的任务总是交给同一个线程，因此同一个爬虫实例的 visit 和 shouldVisit
+ * 不会在流水线中并发执行。
+ * 各阶段的队列长度和线程利用率可用于分别调整各阶段的线程数。
+ *
+ * @author REN
+ */
+public class CrawlPipeline extends Configurable {
+
+  private static final Logger logger = LoggerFactory.getLogger(CrawlPipeline.class);
+
+  private final Stage parseStage;
+  private final Stage linkStage;
+
+  //解析器不是线程安全的，解析阶段的每个线程使用自己的解析器
+  private final ThreadLocal<Parser> parsers = new ThreadLocal<Parser>() {
+    @Override
+    protected Parser initialValue() {
+      return new Parser(config);
+    }
+  };
+
+  public CrawlPipeline(CrawlConfig config) {
+    super(config);
+    parseStage = new Stage("Parse", config.getPipelineParseThreads(), config.getPipelineQueueSize(), false);
+    linkStage = new Stage("Link", config.getPipelineLinkThreads(), config.getPipelineQueueSize(), true);
+  }
+
+  /**
+   * 提交解析任务，解析阶段的队列已满时等待
+   */
+  public void parse(Runnable task) throws InterruptedException {
+    parseStage.submit(task);
+  }
+
+  /**
+   * 提交链接处理任务，链接处理阶段的队列已满时等待。
+   * 同一个爬虫实例的任务由同一个线程按提交顺序执行
+   * @param crawlerId 提交任务的爬虫实例的id
+   */
+  public void processLinks(int crawlerId, Runnable task) throws InterruptedException {
+    linkStage.submit(crawlerId, task);
+  }
+
+  /**
+   * @return 当前线程使用的解析器
+   */
+  public Parser getParser() {
+    return parsers.get();
+  }
+
+  public List<Stage> getStages() {
+    List<Stage> stages = new ArrayList<>(2);
+    stages.add(parseStage);
+    stages.add(linkStage);
+    return Collections.unmodifiableList(stages);
+  }
+
+  /**
+   * 停止接收新任务（之后提交的任务在提交线程中直接执行），等待队列中的任务处理完成，最多等待 timeout 毫秒
+   */
+  public void close(long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    //先关闭解析阶段，解析阶段剩余的任务仍然可以提交到链接处理阶段
+    parseStage.close(deadline);
+    linkStage.close(deadline);
+    for (Stage stage : getStages()) {
+      logger.info("{}", stage);
+    }
+  }
+
+  /**
+   * 流水线的一个阶段：固定数量的工作线程从有界队列中取出任务执行。
+   * 分区的阶段每个线程有自己的队列，任务按key分配到固定的线程；否则所有线程共用一个队列
+   */
+  public static class Stage {
+    private final String name;
+    //每个工作线程的队列，不分区时都是同一个队列
+    private final BlockingQueue<Runnable>[] queues;
+    private final Thread[] workers;
+    private final long startTime = System.nanoTime();
+
+    //正在执行任务的线程数，执行任务累计的时间和完成的任务数
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+
+    private volatile boolean closed = false;
+    //正在提交（等待队列空位）的任务数，关闭时等待它们结束之后再处理队列中剩余的任务
+    private final AtomicInteger submitting = new AtomicInteger();
+
+    @SuppressWarnings("unchecked")
+    Stage(String name, int threads, int queueSize, boolean partitioned) {
+      this.name = name;
+      this.queues = new BlockingQueue[threads];
+      BlockingQueue<Runnable> shared = partitioned ? null : new ArrayBlockingQueue<Runnable>(queueSize);
+      for (int i = 0; i < threads; i++) {
+        queues[i] = partitioned ? new ArrayBlockingQueue<Runnable>(queueSize) : shared;
+      }
+      this.workers = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+        final BlockingQueue<Runnable> queue = queues[i];
+        workers[i] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            work(queue);
+          }
+        }, "Pipeline-" + name + "-" + (i + 1));
+        workers[i].setDaemon(true);
+        workers[i].start();
+      }
+    }
+
+    void submit(Runnable task) throws InterruptedException {
+      submit(0, task);
+    }
+
+    /**
+     * 提交任务，分区时交给第 key % threads 个线程。队列已满时等待空位，
+     * 阶段已经关闭（或者等待期间被关闭）时在提交线程中直接执行
+     */
+    void submit(int key, Runnable task) throws InterruptedException {
+      BlockingQueue<Runnable> queue = queues[(key & Integer.MAX_VALUE) % queues.length];
+      submitting.incrementAndGet();
+      try {
+        while (!closed) {
+          if (queue.offer(task, 100, TimeUnit.MILLISECONDS)) {
+            return;
+          }
+        }
+      } finally {
+        submitting.decrementAndGet();
+      }
+      task.run();
+    }
+
+    private void work(BlockingQueue<Runnable> queue) {
+      try {
+        while (!closed || !queue.isEmpty()) {
+          Runnable task = queue.poll(100, TimeUnit.MILLISECONDS);
+          if (task == null) {
+            continue;
+          }
+          active.incrementAndGet();
+          long start = System.nanoTime();
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            logger.error("Unexpected error in pipeline stage " + name, e);
+          } finally {
+            busyNanos.addAndGet(System.nanoTime() - start);
+            completed.incrementAndGet();
+            active.decrementAndGet();
+          }
+        }
+      } catch (InterruptedException ignored) {
+        // Do nothing
+      }
+    }
+
+    void close(long deadline) {
+      closed = true;
+      for (Thread worker : workers) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        try {
+          worker.join(remaining);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      for (Thread worker : workers) {
+        if (worker.isAlive()) {
+          logger.warn("Pipeline stage {} closed with {} unfinished tasks", name, getQueueDepth());
+          return;
+        }
+      }
+      //关闭之前开始的提交可能在工作线程退出后才放入队列，等待它们结束（关闭后最多再等待一次 offer 的超时）
+      while (submitting.get() > 0) {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      //工作线程退出前后提交的任务在关闭线程中执行
+      for (BlockingQueue<Runnable> queue : getDistinctQueues()) {
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+          task.run();
+        }
+      }
+    }
+
+    private List<BlockingQueue<Runnable>> getDistinctQueues() {
+      List<BlockingQueue<Runnable>> distinct = new ArrayList<>(queues.length);
+      for (BlockingQueue<Runnable> queue : queues) {
+        if (!distinct.contains(queue)) {
+          distinct.add(queue);
+        }
+      }
+      return distinct;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getThreads() {
+      return workers.length;
+    }
+
+    /**
+     * @return 队列中等待的任务数
+     */
+    public int getQueueDepth() {
+      int depth = 0;
+      for (BlockingQueue<Runnable> queue : getDistinctQueues()) {
+        depth += queue.size();
+      }
+      return depth;
+    }
+
+    public int getQueueCapacity() {
+      int capacity = 0;
+      for (BlockingQueue<Runnable> queue : getDistinctQueues()) {
+        capacity += queue.size() + queue.remainingCapacity();
+      }
+      return capacity;
+    }
+
+    /**
+     * @return 正在执行任务的线程数
+     */
+    public int getActiveThreads() {
+      return active.get();
+    }
+
+    public long getCompletedTasks() {
+      return completed.get();
+    }
+
+    /**
+     * @return 从启动以来工作线程执行任务的时间占比，接近1说明此阶段的线程数不够
+     */
+    public double getUtilization() {
+      long elapsed = System.nanoTime() - startTime;
+      return (elapsed <= 0) ? 0 : (double) busyNanos.get() / ((double) elapsed * workers.length);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Pipeline stage %s: %d threads, %d active, queue %d/%d, %d completed, utilization %.2f",
+                           name, getThreads(), getActiveThreads(), getQueueDepth(), getQueueCapacity(),
+                           getCompletedTasks(), getUtilization());
+    }
+  }
+
+  /**
+   * 一个爬虫线程交给流水线的一批页面。爬虫线程在确认这批任务处理完成之前等待所有页面离开流水线，
+   * 因此处理页面时发现的子链接总是在确认之前加入队列。
+   */
+  public static class Batch {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition allDone = lock.newCondition();
+    private int pending = 0;
+
+    /**
+     * 一个页面进入流水线
+     */
+    public void begin() {
+      lock.lock();
+      try {
+        pending++;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * 一个页面离开流水线（处理完成或者出错）
+     */
+    public void done() {
+      lock.lock();
+      try {
+        if (--pending == 0) {
+          allDone.signalAll();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * 等待这批页面全部离开流水线
+     */
+    public void await() {
+      lock.lock();
+      try {
+        while (pending > 0) {
+          allDone.awaitUninterruptibly();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * 等待这批页面全部离开流水线，最多等待 timeout 毫秒，不响应中断
+     * @return 是否已经全部离开
+     */
+    public boolean await(long timeout) {
+      long deadline = System.currentTimeMillis() + timeout;
+      boolean interrupted = false;
+      lock.lock();
+      try {
+        while (pending > 0) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return false;
+          }
+          try {
+            allDone.await(remaining, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        return true;
+      } finally {
+        lock.unlock();
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
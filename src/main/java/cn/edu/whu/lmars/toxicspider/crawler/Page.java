@@ -7,6 +7,7 @@ import org.apache.http.HttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 
+import cn.edu.whu.lmars.toxicspider.fetcher.BoundedContentReader;
 import cn.edu.whu.lmars.toxicspider.parser.ParseData;
 import cn.edu.whu.lmars.toxicspider.url.WebURL;
 
@@ -22,6 +23,7 @@ public class Page {
   protected String redirectedToUrl;
   protected int statusCode;
   protected byte[] contentData; // 页面内容的二进制形式
+  protected boolean truncated; // 页面内容是否超过最大下载量被截断
   protected String contentType; // 网页的contentType For example: "text/html; charset=UTF-8"
   protected String contentEncoding; //网页内容 的编码方式 For example: "gzip"
   protected String contentCharset; //网页内容字符集 For example: "UTF-8"
@@ -41,6 +43,17 @@ public class Page {
    * @throws Exception 加载失败时抛出
    */
   public void load(HttpEntity entity) throws Exception {
+    load(entity, null);
+  }
+
+  /**
+   * 从抓取的HttpEntity实体加载网页内容，读取时限制内容大小
+   *
+   * @param entity HttpEntity
+   * @param reader 限制大小的读取器，为null时不限制大小
+   * @throws Exception 加载失败或者内容超过最大下载量时抛出
+   */
+  public void load(HttpEntity entity, BoundedContentReader reader) throws Exception {
 
     contentType = null;
     Header type = entity.getContentType();
@@ -59,7 +72,14 @@ public class Page {
       contentCharset = charset.displayName();
     }
 
-    contentData = EntityUtils.toByteArray(entity);
+    if (reader == null) {
+      contentData = EntityUtils.toByteArray(entity);
+      truncated = false;
+    } else {
+      BoundedContentReader.Content content = reader.read(entity);
+      contentData = content.getData();
+      truncated = content.isTruncated();
+    }
   }
 
   public WebURL getWebURL() {
@@ -129,6 +149,17 @@ public class Page {
     this.contentData = contentData;
   }
 
+  /**
+   * @return 页面内容是否超过最大下载量被截断，截断时只保留了前 maxDownloadSize 字节
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public void setTruncated(boolean truncated) {
+    this.truncated = truncated;
+  }
+
   /**
    * @return 网页的contentType
    * For example: "text/html; charset=UTF-8"
@@ -1,8 +1,12 @@
 package cn.edu.whu.lmars.toxicspider.crawler;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.http.HttpStatus;
 import org.apache.http.impl.EnglishReasonPhraseCatalog;
@@ -11,9 +15,11 @@ import cn.edu.whu.lmars.toxicspider.crawler.exceptions.ContentFetchException;
 import cn.edu.whu.lmars.toxicspider.crawler.exceptions.PageBiggerThanMaxSizeException;
 import cn.edu.whu.lmars.toxicspider.crawler.exceptions.ParseException;
 import cn.edu.whu.lmars.toxicspider.crawler.exceptions.RedirectException;
+import cn.edu.whu.lmars.toxicspider.fetcher.AsyncPageFetcher;
 import cn.edu.whu.lmars.toxicspider.fetcher.PageFetchResult;
 import cn.edu.whu.lmars.toxicspider.fetcher.PageFetcher;
 import cn.edu.whu.lmars.toxicspider.frontier.DocIDServer;
+import cn.edu.whu.lmars.toxicspider.frontier.DrumDeduplicator;
 import cn.edu.whu.lmars.toxicspider.frontier.Frontier;
 import cn.edu.whu.lmars.toxicspider.parser.NotAllowedContentException;
 import cn.edu.whu.lmars.toxicspider.parser.ParseData;
@@ -32,6 +38,11 @@ public class WebCrawler implements Runnable {
 
   protected static final Logger logger = LoggerFactory.getLogger(WebCrawler.class);
 
+  /**
+   * 开启任务窃取时，等待新任务的最长时间（毫秒），超时后再尝试从其他线程窃取
+   */
+  private static final long STEAL_INTERVAL = 1000;
+
   /**
    * 这个id是和实例的爬虫线程联系的。
    */
@@ -73,6 +84,27 @@ public class WebCrawler implements Runnable {
    */
   private Frontier frontier;
 
+  /**
+   * 子链接批量去重器，未开启 useDrumDeduplication 时为null
+   */
+  private DrumDeduplicator drumDeduplicator;
+
+  /**
+   * 页面处理流水线，未开启 usePipelinedProcessing 时为null，此时在爬虫线程中完成所有处理
+   */
+  private CrawlPipeline pipeline;
+
+  /**
+   * 异步抓取器，未开启 useAsyncFetching 时为null，此时爬虫线程同步抓取每个页面
+   */
+  private AsyncPageFetcher asyncPageFetcher;
+
+  /**
+   * 此爬虫线程的本地任务队列，未开启 useWorkStealing 时为null
+   */
+  private WorkStealingQueues workStealingQueues;
+  private WorkStealingQueues.LocalQueue localQueue;
+
   /**
    * 当前爬虫实例是否在等待着新加入的URL？
    * 控制器 会利用这个字段判断是否所有的爬虫实例都在等待新的URL，
@@ -95,6 +127,12 @@ public class WebCrawler implements Runnable {
     this.robotstxtServer = crawlController.getRobotstxtServer();
     this.docIdServer = crawlController.getDocIdServer();
     this.frontier = crawlController.getFrontier();
+    this.drumDeduplicator = crawlController.getDrumDeduplicator();
+    this.pipeline = crawlController.getPipeline();
+    this.asyncPageFetcher = crawlController.getConfig().isUseAsyncFetching() ?
+                            (AsyncPageFetcher) pageFetcher : null;
+    this.workStealingQueues = crawlController.getWorkStealingQueues();
+    this.localQueue = (workStealingQueues != null) ? workStealingQueues.register(id) : null;
     this.parser = new Parser(crawlController.getConfig());
     this.myController = crawlController;
     this.isWaitingForNewURLs = false;
@@ -220,37 +258,212 @@ public class WebCrawler implements Runnable {
   public void run() {
     onStart();
     while (true) {
-      List<WebURL> assignedURLs = new ArrayList<>(50);
-      isWaitingForNewURLs = true;
-      frontier.getNextURLs(50, assignedURLs); //同步方法，当获取不到数据的时候，就会处于waiting状态。
-      isWaitingForNewURLs = false;
+      int batchSize = getBatchSize();
+      List<WebURL> assignedURLs = new ArrayList<>(batchSize);
+      if (localQueue != null) {
+        //没有到期的任务时，先帮助其他线程处理它们还未开始的任务，再等待新任务
+        frontier.getNextURLs(batchSize, assignedURLs, 0);
+        if (assignedURLs.isEmpty() && !frontier.isFinished()) {
+          List<WebURL> stolenURLs = new ArrayList<>();
+          WorkStealingQueues.LocalQueue victim = workStealingQueues.steal(localQueue, stolenURLs);
+          if (victim != null) {
+            if (!processBatch(new ArrayDeque<>(stolenURLs), victim.getOwner())) {
+              return;
+            }
+            continue;
+          }
+          isWaitingForNewURLs = true;
+          frontier.getNextURLs(batchSize, assignedURLs, STEAL_INTERVAL);
+          isWaitingForNewURLs = false;
+        }
+      } else {
+        isWaitingForNewURLs = true;
+        frontier.getNextURLs(batchSize, assignedURLs); //同步方法，当获取不到数据的时候，就会处于waiting状态。
+        isWaitingForNewURLs = false;
+      }
       if (assignedURLs.isEmpty()) {
+        //getNextURLs 只有在爬取结束、线程被中断或者等待超时时才会返回空
         if (frontier.isFinished()) {
           return;
         }
-        try {
-          Thread.sleep(3000); //如果没有URL了，那就等待3秒钟。
-        } catch (InterruptedException e) {
-          logger.error("Error occurred", e);
-        }
       } else {
-        for (WebURL curURL : assignedURLs) {
-          if (myController.isShuttingDown()) {
-            logger.info("Exiting because of controller shutdown.");
-            return;
+        Queue<WebURL> urls;
+        if (localQueue != null) {
+          localQueue.fill(assignedURLs); //其他线程可以从尾部窃取
+          urls = localQueue;
+        } else {
+          urls = new ArrayDeque<>(assignedURLs);
+        }
+        if (!processBatch(urls, Thread.currentThread())) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * 每次获取的任务数：队列中的任务平均分给各爬虫线程，不超过 crawlerBatchSize
+   */
+  protected int getBatchSize() {
+    int crawlers = Math.max(1, myController.getNumberOfCrawlers());
+    long perCrawler = (frontier.getQueueLength() + crawlers - 1) / crawlers;
+    return (int) Math.max(1, Math.min(myController.getConfig().getCrawlerBatchSize(), perCrawler));
+  }
+
+  /**
+   * 依次处理一批任务，处理完成的任务在整批结束后一次确认
+   * @param urls 要处理的任务，开启任务窃取时其他线程可能同时从尾部取走任务
+   * @param owner 取得这些任务的线程，任务从它的租约中确认
+   * @return 控制器要求停止时返回false
+   */
+  private boolean processBatch(Queue<WebURL> urls, Thread owner) {
+    if (asyncPageFetcher != null) {
+      return processBatchAsync(urls, owner);
+    }
+    List<WebURL> processedURLs = new ArrayList<>();
+    CrawlPipeline.Batch batch = (pipeline != null) ? new CrawlPipeline.Batch() : null;
+    try {
+      WebURL assignedURL;
+      while ((assignedURL = urls.poll()) != null) {
+        if (myController.isShuttingDown()) {
+          logger.info("Exiting because of controller shutdown.");
+          return false;
+        }
+        WebURL curURL = handleUrlBeforeProcess(assignedURL);
+        processPage(curURL, batch); //最重要的一个
+        processedURLs.add(assignedURL); //确认的是分配时的任务对象
+        frontier.renewLease(owner);
+      }
+    } finally {
+      if (batch != null) {
+        awaitPipeline(batch, owner); //交给流水线的页面处理完成后才能确认
+      }
+      frontier.setProcessed(processedURLs, owner);
+    }
+    return true;
+  }
+
+  /**
+   * 异步抓取一批任务：先发出整批请求，再按完成顺序依次处理抓取结果（开启流水线时交给解析阶段）。
+   * 抓取回调在 I/O 线程中执行，只把结果放入完成队列，其余处理都在爬虫线程中进行。
+   * @param urls 要处理的任务
+   * @param owner 取得这些任务的线程，任务从它的租约中确认
+   * @return 控制器要求停止时返回false
+   */
+  private boolean processBatchAsync(Queue<WebURL> urls, Thread owner) {
+    List<WebURL> processedURLs = new ArrayList<>();
+    CrawlPipeline.Batch batch = (pipeline != null) ? new CrawlPipeline.Batch() : null;
+    final BlockingQueue<FetchCompletion> completions = new LinkedBlockingQueue<>();
+    int outstanding = 0;
+    boolean stopped = false;
+    try {
+      WebURL assignedURL;
+      while ((assignedURL = urls.poll()) != null) {
+        if (myController.isShuttingDown()) {
+          logger.info("Exiting because of controller shutdown.");
+          stopped = true;
+          break;
+        }
+        final WebURL curURL = handleUrlBeforeProcess(assignedURL);
+        if (curURL == null) {
+          onUnhandledException(null, new Exception("Failed processing a NULL url !?"));
+          processedURLs.add(assignedURL);
+          continue;
+        }
+        asyncPageFetcher.fetchPageAsync(curURL, new AsyncPageFetcher.FetchCallback() {
+          @Override
+          public void completed(WebURL webUrl, PageFetchResult fetchResult) {
+            completions.add(new FetchCompletion(webUrl, fetchResult, null));
           }
-          if (curURL != null) {
-            curURL = handleUrlBeforeProcess(curURL);
-            processPage(curURL); //最重要的一个
-            frontier.setProcessed(curURL);
+
+          @Override
+          public void failed(WebURL webUrl, Exception e) {
+            completions.add(new FetchCompletion(webUrl, null, e));
           }
+        });
+        outstanding++;
+        processedURLs.add(assignedURL);
+      }
+    } catch (InterruptedException e) {
+      logger.info("Interrupted while submitting fetch requests");
+      stopped = true;
+    } finally {
+      //已经发出的请求都要等待完成，释放抓取结果后才能确认
+      for (; outstanding > 0; outstanding--) {
+        FetchCompletion completion = takeUninterruptibly(completions);
+        if (completion.error != null) {
+          onProcessingException(completion.webUrl, completion.error);
+          continue;
+        }
+        try {
+          processFetchResult(completion.webUrl, completion.fetchResult, batch);
+        } catch (Exception e) {
+          onProcessingException(completion.webUrl, e);
+        } finally {
+          completion.fetchResult.discardContentIfNotConsumed();
+        }
+        frontier.renewLease(owner);
+      }
+      if (batch != null) {
+        awaitPipeline(batch, owner); //交给流水线的页面处理完成后才能确认
+      }
+      frontier.setProcessed(processedURLs, owner);
+    }
+    return !stopped;
+  }
+
+  /**
+   * 等待交给流水线的页面处理完成。解析或者链接处理较慢时，等待期间每半个租约期延长一次租约，
+   * 避免这批任务被当作停滞而重新分配
+   */
+  private void awaitPipeline(CrawlPipeline.Batch batch, Thread owner) {
+    long leaseTimeout = myController.getConfig().getFrontierLeaseTimeout();
+    if (leaseTimeout <= 0) {
+      batch.await();
+      return;
+    }
+    while (!batch.await(Math.max(1, leaseTimeout / 2))) {
+      frontier.renewLease(owner);
+    }
+  }
+
+  private static FetchCompletion takeUninterruptibly(BlockingQueue<FetchCompletion> completions) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return completions.take();
+        } catch (InterruptedException e) {
+          interrupted = true;
         }
       }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * 一个异步抓取的结果：成功时 fetchResult 不为null，失败时 error 不为null
+   */
+  private static class FetchCompletion {
+    final WebURL webUrl;
+    final PageFetchResult fetchResult;
+    final Exception error;
+
+    FetchCompletion(WebURL webUrl, PageFetchResult fetchResult, Exception error) {
+      this.webUrl = webUrl;
+      this.fetchResult = fetchResult;
+      this.error = error;
     }
   }
 
   /**
    * 继承WebCrawler的类应该覆盖该方法，来告诉爬虫给定的URL是否要爬取。默认的继承表示所有的URL都会进行爬取。
+   * 开启 usePipelinedProcessing 时，检查子链接的调用发生在流水线的链接处理线程中，同一个爬虫实例的子链接检查和 visit
+   * 总是由同一个链接处理线程依次执行；但检查重定向目标的调用仍然在爬虫线程中，可能与之同时执行，
+   * 在这里读写实例状态时需要自行同步。
    * @param url
    *            是否需要爬取的网页
    *            
@@ -266,6 +479,9 @@ public class WebCrawler implements Runnable {
 
   /**
    * 继承WebCrawler的类应该覆盖此方法。来处理抓取和解析到数据。
+   * 开启 usePipelinedProcessing 时此方法在流水线的链接处理线程中调用，而不是爬虫线程。
+   * 同一个爬虫实例的 visit 总是由同一个链接处理线程依次调用，不会并发，但可能与爬虫线程中的其他回调
+   * （如 handlePageStatusCode、onUnexpectedStatusCode、检查重定向目标的 shouldVisit）同时执行。
    * @param page
    *            抓取和解析到的数据
    */
@@ -277,9 +493,11 @@ public class WebCrawler implements Runnable {
   /**
    * 任务处理函数
    * 	每个爬虫实例都会执行这个函数处理URL
+   * 开启流水线时，爬虫线程只完成抓取和下载内容，解析和子链接处理交给流水线，完成后从 batch 中移除
    * @param curURL
+   * @param batch 此爬虫线程当前交给流水线的页面，未开启流水线时为null
    */
-  private void processPage(WebURL curURL) {
+  private void processPage(WebURL curURL, CrawlPipeline.Batch batch) {
     PageFetchResult fetchResult = null;
     try {
       if (curURL == null) {
@@ -287,124 +505,231 @@ public class WebCrawler implements Runnable {
       }
 
       fetchResult = pageFetcher.fetchPage(curURL); //pageFetcher:网页内容抓取器，使用HttpClient抓取网页内容。
-      int statusCode = fetchResult.getStatusCode();
-      handlePageStatusCode(curURL, statusCode, EnglishReasonPhraseCatalog.INSTANCE
-          .getReason(statusCode, Locale.ENGLISH)); // Finds the status reason for all known statuses
-
-      Page page = new Page(curURL);
-      page.setFetchResponseHeaders(fetchResult.getResponseHeaders());
-      page.setStatusCode(statusCode);
-      if (statusCode < 200 || statusCode > 299) { // Not 2XX: 2XX status codes indicate success
-        if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY ||
-            statusCode == HttpStatus.SC_MULTIPLE_CHOICES || statusCode == HttpStatus.SC_SEE_OTHER ||
-            statusCode == HttpStatus.SC_TEMPORARY_REDIRECT ||
-            statusCode == 308) { // is 3xx  todo follow https://issues.apache.org/jira/browse/HTTPCORE-389
-
-          page.setRedirect(true);
-          if (myController.getConfig().isFollowRedirects()) {
-            String movedToUrl = fetchResult.getMovedToUrl();
-            if (movedToUrl == null) {
-              throw new RedirectException(Level.WARN, "Unexpected error, URL: " + curURL + " is redirected to NOTHING");
-            }
-            page.setRedirectedToUrl(movedToUrl);
+      processFetchResult(curURL, fetchResult, batch);
+    } catch (Exception e) {
+      onProcessingException(curURL, e);
+    } finally {
+      if (fetchResult != null) {
+        fetchResult.discardContentIfNotConsumed();
+      }
+    }
+  }
 
-            int newDocId = docIdServer.getDocId(movedToUrl);
-            if (newDocId > 0) {
-              throw new RedirectException(Level.DEBUG, "Redirect page: " + curURL + " is already seen");
-            }
+  /**
+   * 处理抓取结果：根据状态码处理重定向和错误，成功时加载内容，解析并处理子链接（或交给流水线）。
+   * 同步抓取和异步抓取共用，调用者负责处理异常和释放抓取结果。
+   * @param curURL
+   * @param fetchResult 抓取结果
+   * @param batch 此爬虫线程当前交给流水线的页面，未开启流水线时为null
+   */
+  private void processFetchResult(WebURL curURL, PageFetchResult fetchResult, CrawlPipeline.Batch batch)
+      throws Exception {
+    int statusCode = fetchResult.getStatusCode();
+    handlePageStatusCode(curURL, statusCode, EnglishReasonPhraseCatalog.INSTANCE
+        .getReason(statusCode, Locale.ENGLISH)); // Finds the status reason for all known statuses
+
+    Page page = new Page(curURL);
+    page.setFetchResponseHeaders(fetchResult.getResponseHeaders());
+    page.setStatusCode(statusCode);
+    if (statusCode < 200 || statusCode > 299) { // Not 2XX: 2XX status codes indicate success
+      // 非2XX的响应不需要内容，先释放主机的并发名额。检查重定向目标时可能要抓取同一主机的robots.txt，
+      // 仍然占用名额会等待自己而永远阻塞
+      fetchResult.discardContentIfNotConsumed();
+      if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY ||
+          statusCode == HttpStatus.SC_MULTIPLE_CHOICES || statusCode == HttpStatus.SC_SEE_OTHER ||
+          statusCode == HttpStatus.SC_TEMPORARY_REDIRECT ||
+          statusCode == 308) { // is 3xx  todo follow https://issues.apache.org/jira/browse/HTTPCORE-389
+
+        page.setRedirect(true);
+        if (myController.getConfig().isFollowRedirects()) {
+          String movedToUrl = fetchResult.getMovedToUrl();
+          if (movedToUrl == null) {
+            throw new RedirectException(Level.WARN, "Unexpected error, URL: " + curURL + " is redirected to NOTHING");
+          }
+          page.setRedirectedToUrl(movedToUrl);
+
+          int newDocId = docIdServer.getDocId(movedToUrl);
+          if (newDocId > 0) {
+            throw new RedirectException(Level.DEBUG, "Redirect page: " + curURL + " is already seen");
+          }
 
-            WebURL webURL = new WebURL();
-            webURL.setURL(movedToUrl);
-            webURL.setParentDocid(curURL.getParentDocid());
-            webURL.setParentUrl(curURL.getParentUrl());
-            webURL.setDepth(curURL.getDepth());
-            webURL.setDocid(-1);
-            webURL.setAnchor(curURL.getAnchor());
-            if (shouldVisit(page, webURL)) {
-              if (robotstxtServer.allows(webURL)) {
-                webURL.setDocid(docIdServer.getNewDocID(movedToUrl));
-                frontier.schedule(webURL);
-              } else {
-                logger.debug("Not visiting: {} as per the server's \"robots.txt\" policy", webURL.getURL());
-              }
+          WebURL webURL = new WebURL();
+          webURL.setURL(movedToUrl);
+          webURL.setParentDocid(curURL.getParentDocid());
+          webURL.setParentUrl(curURL.getParentUrl());
+          webURL.setDepth(curURL.getDepth());
+          webURL.setDocid(-1);
+          webURL.setAnchor(curURL.getAnchor());
+          if (shouldVisit(page, webURL)) {
+            if (robotstxtServer.allows(webURL)) {
+              webURL.setDocid(docIdServer.getNewDocID(movedToUrl));
+              frontier.schedule(webURL);
             } else {
-              logger.debug("Not visiting: {} as per your \"shouldVisit\" policy", webURL.getURL());
+              logger.debug("Not visiting: {} as per the server's \"robots.txt\" policy", webURL.getURL());
             }
+          } else {
+            logger.debug("Not visiting: {} as per your \"shouldVisit\" policy", webURL.getURL());
           }
-        } else { // All other http codes other than 3xx & 200
-          String description = EnglishReasonPhraseCatalog.INSTANCE
-              .getReason(fetchResult.getStatusCode(), Locale.ENGLISH); // Finds the status reason for all known statuses
-          String contentType =
-              fetchResult.getEntity() == null ? "" : fetchResult.getEntity().getContentType().getValue();
-          onUnexpectedStatusCode(curURL.getURL(), fetchResult.getStatusCode(), contentType, description);
         }
+      } else { // All other http codes other than 3xx & 200
+        String description = EnglishReasonPhraseCatalog.INSTANCE
+            .getReason(fetchResult.getStatusCode(), Locale.ENGLISH); // Finds the status reason for all known statuses
+        String contentType =
+            fetchResult.getEntity() == null ? "" : fetchResult.getEntity().getContentType().getValue();
+        onUnexpectedStatusCode(curURL.getURL(), fetchResult.getStatusCode(), contentType, description);
+      }
 
-      } else { // if status code is 200
-        if (!curURL.getURL().equals(fetchResult.getFetchedUrl())) {
-          if (docIdServer.isSeenBefore(fetchResult.getFetchedUrl())) {
-            throw new RedirectException(Level.DEBUG, "Redirect page: " + curURL + " has already been seen");
-          }
-          curURL.setURL(fetchResult.getFetchedUrl());
-          curURL.setDocid(docIdServer.getNewDocID(fetchResult.getFetchedUrl()));
+    } else { // if status code is 200
+      if (!curURL.getURL().equals(fetchResult.getFetchedUrl())) {
+        if (docIdServer.isSeenBefore(fetchResult.getFetchedUrl())) {
+          throw new RedirectException(Level.DEBUG, "Redirect page: " + curURL + " has already been seen");
         }
+        curURL.setURL(fetchResult.getFetchedUrl());
+        curURL.setDocid(docIdServer.getNewDocID(fetchResult.getFetchedUrl()));
+      }
 
-        if (!fetchResult.fetchContent(page)) {
-          throw new ContentFetchException();
-        }
+      if (!fetchResult.fetchContent(page)) {
+        throw new ContentFetchException();
+      }
 
+      if (batch != null) {
+        submitToPipeline(curURL, page, batch);
+      } else {
         parser.parse(page, curURL.getURL()); //对抓取内容进行解析
+        processOutgoingLinks(curURL, page);
+        visit(page);
+      }
+    }
+  }
 
-        ParseData parseData = page.getParseData();
-        List<WebURL> toSchedule = new ArrayList<>();
-        int maxCrawlDepth = myController.getConfig().getMaxDepthOfCrawling();
-        for (WebURL webURL : parseData.getOutgoingUrls()) {
-          webURL.setParentDocid(curURL.getDocid());
-          webURL.setParentUrl(curURL.getURL());
-          int newdocid = docIdServer.getDocId(webURL.getURL());
-          if (newdocid > 0) {
-            // This is not the first time that this Url is visited. So, we set the depth to a negative number.
-            webURL.setDepth((short) -1);
-            webURL.setDocid(newdocid);
-          } else {
-            webURL.setDocid(-1);
-            webURL.setDepth((short) (curURL.getDepth() + 1));
-            if ((maxCrawlDepth == -1) || (curURL.getDepth() < maxCrawlDepth)) {
-              if (shouldVisit(page, webURL)) {
-                if (robotstxtServer.allows(webURL)) {
-                  webURL.setDocid(docIdServer.getNewDocID(webURL.getURL()));
-                  toSchedule.add(webURL);
-                } else {
-                  logger.debug("Not visiting: {} as per the server's \"robots.txt\" policy", webURL.getURL());
-                }
-              } else {
-                logger.debug("Not visiting: {} as per your \"shouldVisit\" policy", webURL.getURL());
-              }
+  /**
+   * 把已经下载内容的页面交给流水线：在解析阶段解析，然后在链接处理阶段处理子链接并调用 visit。
+   * 阶段的队列已满时等待。
+   */
+  private void submitToPipeline(final WebURL curURL, final Page page, final CrawlPipeline.Batch batch)
+      throws InterruptedException {
+    final Runnable linkTask = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          processOutgoingLinks(curURL, page);
+          visit(page);
+        } catch (Exception e) {
+          onProcessingException(curURL, e);
+        } finally {
+          batch.done();
+        }
+      }
+    };
+    batch.begin();
+    try {
+      pipeline.parse(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            pipeline.getParser().parse(page, curURL.getURL());
+          } catch (Exception e) {
+            onProcessingException(curURL, e);
+            batch.done();
+            return;
+          }
+          try {
+            pipeline.processLinks(myId, linkTask);
+          } catch (InterruptedException e) {
+            onProcessingException(curURL, e);
+            batch.done();
+          }
+        }
+      });
+    } catch (InterruptedException e) {
+      batch.done();
+      throw e;
+    }
+  }
+
+  /**
+   * 处理已经解析的页面中的子链接：查询docID，检查 shouldVisit 和 robots.txt，为新的链接分配docID并调度
+   */
+  private void processOutgoingLinks(WebURL curURL, Page page) {
+    ParseData parseData = page.getParseData();
+    List<WebURL> outgoingUrls = new ArrayList<>(parseData.getOutgoingUrls());
+    // 批量查询所有子链接的docID，每个网页只获取一次 DocIDServer 的锁，布隆过滤器判断一定没有见过的链接不读数据库。
+    // 使用 DRUM 时由后台合并的已见指纹文件统一去重，不在这里逐个查询（已见链接的查询都是随机读）：
+    // ParseData 中的子链接docID都为-1、深度都为父网页深度加一，shouldVisit 和 robots.txt 的检查对所有子链接进行
+    int[] seenDocIds = (drumDeduplicator != null) ? new int[outgoingUrls.size()] :
+                       docIdServer.getDocIds(getURLs(outgoingUrls));
+    List<WebURL> candidates = new ArrayList<>();
+    int maxCrawlDepth = myController.getConfig().getMaxDepthOfCrawling();
+    for (int i = 0; i < outgoingUrls.size(); i++) {
+      WebURL webURL = outgoingUrls.get(i);
+      webURL.setParentDocid(curURL.getDocid());
+      webURL.setParentUrl(curURL.getURL());
+      if (seenDocIds[i] > 0) {
+        // This is not the first time that this Url is visited. So, we set the depth to a negative number.
+        webURL.setDepth((short) -1);
+        webURL.setDocid(seenDocIds[i]);
+      } else {
+        webURL.setDocid(-1);
+        webURL.setDepth((short) (curURL.getDepth() + 1));
+        if ((maxCrawlDepth == -1) || (curURL.getDepth() < maxCrawlDepth)) {
+          if (shouldVisit(page, webURL)) {
+            if (robotstxtServer.allows(webURL)) {
+              candidates.add(webURL);
+            } else {
+              logger.debug("Not visiting: {} as per the server's \"robots.txt\" policy", webURL.getURL());
             }
+          } else {
+            logger.debug("Not visiting: {} as per your \"shouldVisit\" policy", webURL.getURL());
           }
         }
-        frontier.scheduleAll(toSchedule);
+      }
+    }
 
-        visit(page);
+    if (drumDeduplicator != null) {
+      drumDeduplicator.add(candidates);
+    } else if (!candidates.isEmpty()) {
+      // 批量分配新的docID，只调度由此次调用新分配docID的链接（期间被其他线程发现的链接不会重复调度）
+      List<WebURL> toSchedule = new ArrayList<>(candidates.size());
+      boolean[] assigned = new boolean[candidates.size()];
+      int[] newDocIds = docIdServer.getOrAssignDocIds(getURLs(candidates), assigned);
+      for (int i = 0; i < candidates.size(); i++) {
+        WebURL webURL = candidates.get(i);
+        webURL.setDocid(newDocIds[i]);
+        if (assigned[i]) {
+          toSchedule.add(webURL);
+        }
       }
-    } catch (PageBiggerThanMaxSizeException e) {
-      onPageBiggerThanMaxSize(curURL.getURL(), e.getPageSize());
-    } catch (ParseException pe) {
+      frontier.scheduleAll(toSchedule);
+    }
+  }
+
+  /**
+   * 处理页面过程中出现的异常，根据异常类型调用相应的回调
+   */
+  private void onProcessingException(WebURL curURL, Exception e) {
+    if (e instanceof PageBiggerThanMaxSizeException) {
+      onPageBiggerThanMaxSize(curURL.getURL(), ((PageBiggerThanMaxSizeException) e).getPageSize());
+    } else if (e instanceof ParseException) {
       onParseError(curURL);
-    } catch (ContentFetchException cfe) {
+    } else if (e instanceof ContentFetchException) {
       onContentFetchError(curURL);
-    } catch (RedirectException re) {
-      logger.log(re.level, re.getMessage());
-    } catch (NotAllowedContentException nace) {
+    } else if (e instanceof RedirectException) {
+      logger.log(((RedirectException) e).level, e.getMessage());
+    } else if (e instanceof NotAllowedContentException) {
       logger.debug("Skipping: {} as it contains binary content which you configured not to crawl", curURL.getURL());
-    } catch (Exception e) {
+    } else {
       onUnhandledException(curURL, e);
-    } finally {
-      if (fetchResult != null) {
-        fetchResult.discardContentIfNotConsumed();
-      }
     }
   }
 
+  private static List<String> getURLs(List<WebURL> webURLs) {
+    List<String> urls = new ArrayList<>(webURLs.size());
+    for (WebURL webURL : webURLs) {
+      urls.add(webURL.getURL());
+    }
+    return urls;
+  }
+
   public Thread getThread() {
     return myThread;
   }
@@ -0,0 +1,118 @@
+package cn.edu.whu.lmars.toxicspider.crawler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+
+/**
+ * 爬虫线程的本地任务队列。
+ * 每个爬虫线程把从 Frontier 取到的一批任务放到自己的本地队列中，从队列头部依次处理；
+ * 空闲的线程从最长的本地队列尾部取走一半还未开始的任务，因此一个慢速主机只会拖住正在处理它的线程。
+ * 被窃取的任务仍然属于取得它的线程的租约，窃取者处理完成后代替原线程确认。
+ *
+ * @author REN
+ */
+public class WorkStealingQueues {
+
+  private final ConcurrentMap<Integer, LocalQueue> queues = new ConcurrentHashMap<>();
+
+  private final AtomicLong stolenURLs = new AtomicLong();
+
+  /**
+   * 为爬虫线程创建本地队列。重新创建停止的线程时替换原来的队列，原队列中未开始的任务随原线程的租约一起重新调度，不会再被窃取。
+   * @param crawlerId 爬虫id
+   * @return 新的本地队列
+   */
+  public LocalQueue register(int crawlerId) {
+    LocalQueue queue = new LocalQueue();
+    LocalQueue old = queues.put(crawlerId, queue);
+    if (old != null) {
+      old.clear();
+    }
+    return queue;
+  }
+
+  /**
+   * 从最长的其他本地队列尾部取走一半还未开始的任务（至少一个）
+   * @param thief 窃取者自己的本地队列
+   * @param result 窃取到的任务
+   * @return 被窃取的队列，没有可以窃取的任务时返回null
+   */
+  public LocalQueue steal(LocalQueue thief, List<WebURL> result) {
+    LocalQueue victim = null;
+    int victimSize = 0;
+    for (LocalQueue queue : queues.values()) {
+      if (queue != thief) {
+        int size = queue.size();
+        if (size > victimSize) {
+          victim = queue;
+          victimSize = size;
+        }
+      }
+    }
+    if (victim == null) {
+      return null;
+    }
+    int count = Math.max(1, victimSize / 2);
+    for (int i = 0; i < count; i++) {
+      WebURL url = victim.pollLast();
+      if (url == null) {
+        break; //原线程或其他窃取者同时取走了剩下的任务
+      }
+      result.add(url);
+    }
+    if (result.isEmpty()) {
+      return null;
+    }
+    //窃取的任务从尾部取出，恢复原来的顺序
+    Collections.reverse(result);
+    stolenURLs.addAndGet(result.size());
+    return victim;
+  }
+
+  /**
+   * @return 各本地队列中还未开始的任务数
+   */
+  public List<Integer> getQueueSizes() {
+    List<Integer> sizes = new ArrayList<>(queues.size());
+    for (LocalQueue queue : queues.values()) {
+      sizes.add(queue.size());
+    }
+    return sizes;
+  }
+
+  /**
+   * @return 累计被窃取的任务数
+   */
+  public long getStolenURLs() {
+    return stolenURLs.get();
+  }
+
+  /**
+   * 一个爬虫线程的本地队列。只有所属线程从头部取任务，窃取者从尾部取任务。
+   */
+  public static class LocalQueue extends ConcurrentLinkedDeque<WebURL> {
+    private static final long serialVersionUID = 1L;
+
+    //取得队列中任务的线程，窃取者用它确认任务和延长租约
+    private transient volatile Thread owner;
+
+    /**
+     * 放入当前线程刚取得的一批任务
+     */
+    public void fill(List<WebURL> batch) {
+      owner = Thread.currentThread();
+      addAll(batch);
+    }
+
+    public Thread getOwner() {
+      return owner;
+    }
+  }
+}
@@ -0,0 +1,494 @@
+package cn.edu.whu.lmars.toxicspider.fetcher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.ContentTooLongException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+
+import cn.edu.whu.lmars.toxicspider.crawler.CrawlConfig;
+import cn.edu.whu.lmars.toxicspider.crawler.exceptions.PageBiggerThanMaxSizeException;
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+
+/**
+ * 基于 NIO 的异步网页抓取器。
+ * 少量 I/O 线程（asyncIoThreads）即可同时维持大量进行中的请求（maxInFlightRequests），
+ * 请求完成后通过 {@link FetchCallback} 把 PageFetchResult 交给后续的解析处理。
+ * 抓取间隔和并发名额同样按主机控制，但等待通过定时任务实现，不占用线程。
+ *
+ * 同步的 {@link #fetchPage(WebURL)} 也通过异步引擎完成，因此可以直接替换 PageFetcher 使用。
+ * 注意：BASIC/NT/FORM 认证信息只作用于父类的同步 HttpClient。
+ *
+ * @author REN
+ */
+public class AsyncPageFetcher extends PageFetcher {
+
+  //主机的并发名额已满时，重新尝试的间隔（毫秒）
+  private static final long SLOT_RETRY_INTERVAL = 50;
+
+  /**
+   * 异步抓取回调。回调在 I/O 线程中执行，耗时的处理（如解析）应交给其他线程。
+   */
+  public interface FetchCallback {
+    /**
+     * 抓取完成。处理完后需要调用 {@link PageFetchResult#discardContentIfNotConsumed()}。
+     */
+    void completed(WebURL webUrl, PageFetchResult fetchResult);
+
+    /**
+     * 抓取失败，内容过大时 e 为 PageBiggerThanMaxSizeException。
+     */
+    void failed(WebURL webUrl, Exception e);
+  }
+
+  protected PoolingNHttpClientConnectionManager asyncConnectionManager; //异步连接管理器
+  protected CloseableHttpAsyncClient asyncClient; //异步httpClient
+  protected ScheduledExecutorService scheduler; //抓取间隔等待和闲置连接清理
+
+  //限制同时进行中的请求数
+  protected final Semaphore inFlightPermits;
+  protected final AtomicInteger inFlight = new AtomicInteger();
+
+  //还没有回调的请求，关闭时对它们回调失败，等待结果的爬虫线程不会一直等待
+  private final Set<PendingFetch> pendingFetches =
+      Collections.newSetFromMap(new ConcurrentHashMap<PendingFetch, Boolean>());
+  private volatile boolean shutDown = false;
+
+  public AsyncPageFetcher(CrawlConfig config) throws IOReactorException {
+    super(config);
+
+    inFlightPermits = new Semaphore(config.getMaxInFlightRequests());
+
+    IOReactorConfig ioReactorConfig = IOReactorConfig.custom().setIoThreadCount(config.getAsyncIoThreads())
+                                                     .setSoTimeout(config.getSocketTimeout())
+                                                     .setConnectTimeout(config.getConnectionTimeout()).build();
+
+    RegistryBuilder<SchemeIOSessionStrategy> sessionRegistryBuilder = RegistryBuilder.create();
+    sessionRegistryBuilder.register("http", NoopIOSessionStrategy.INSTANCE);
+    if (config.isIncludeHttpsPages()) {
+      try {
+        sessionRegistryBuilder.register("https", new SSLIOSessionStrategy(buildTrustAllSslContext(),
+                                                                          SSLIOSessionStrategy
+                                                                              .ALLOW_ALL_HOSTNAME_VERIFIER));
+      } catch (Exception e) {
+        logger.warn("Exception thrown while trying to register https for async fetching");
+        logger.debug("Stacktrace", e);
+      }
+    }
+    Registry<SchemeIOSessionStrategy> sessionRegistry = sessionRegistryBuilder.build();
+
+    asyncConnectionManager =
+        new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig), sessionRegistry);
+    //连接池按同时进行中的请求数设置，每个主机的连接数仍然受 getMaxConnectionsPerRoute 限制
+    asyncConnectionManager.setMaxTotal(config.getMaxInFlightRequests());
+    asyncConnectionManager.setDefaultMaxPerRoute(getMaxConnectionsPerRoute());
+
+    RequestConfig requestConfig =
+        RequestConfig.custom().setExpectContinueEnabled(false).setCookieSpec(CookieSpecs.DEFAULT)
+                     .setRedirectsEnabled(false).setSocketTimeout(config.getSocketTimeout())
+                     .setConnectTimeout(config.getConnectionTimeout()).build();
+
+    HttpAsyncClientBuilder clientBuilder = HttpAsyncClientBuilder.create();
+    clientBuilder.setDefaultRequestConfig(requestConfig);
+    clientBuilder.setConnectionManager(asyncConnectionManager);
+    clientBuilder.setUserAgent(config.getUserAgentString());
+    clientBuilder.setDefaultHeaders(config.getDefaultHeaders());
+
+    if (config.getProxyHost() != null) {
+      if (config.getProxyUsername() != null) {
+        BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        credentialsProvider.setCredentials(new AuthScope(config.getProxyHost(), config.getProxyPort()),
+                                           new UsernamePasswordCredentials(config.getProxyUsername(),
+                                                                           config.getProxyPassword()));
+        clientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+      }
+      clientBuilder.setProxy(new HttpHost(config.getProxyHost(), config.getProxyPort()));
+    }
+
+    asyncClient = clientBuilder.build();
+    asyncClient.start();
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Async Fetch Scheduler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        // 关闭过期无效链接和闲置30秒的连接
+        asyncConnectionManager.closeExpiredConnections();
+        asyncConnectionManager.closeIdleConnections(30, TimeUnit.SECONDS);
+      }
+    }, 5, 5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * 异步抓取一个网页，立即返回（进行中的请求数达到上限时会等待）。
+   * 如果此主机的并发名额已满或者还未到抓取时间，请求会在有名额并且到期后才发出。
+   *
+   * @param webUrl 要抓取的URL
+   * @param fetchCallback 抓取完成或失败时的回调，只回调一次；关闭抓取器时还没有完成的请求回调失败
+   * @throws InterruptedException 等待请求名额时被中断
+   */
+  public void fetchPageAsync(final WebURL webUrl, FetchCallback fetchCallback) throws InterruptedException {
+    inFlightPermits.acquire();
+    inFlight.incrementAndGet();
+    final PendingFetch callback = new PendingFetch(webUrl, fetchCallback);
+    pendingFetches.add(callback);
+    if (shutDown) {
+      callback.failed(webUrl, new InterruptedIOException("Fetcher is shut down: " + webUrl.getURL()));
+      return;
+    }
+
+    Runnable acquireSlot = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          //主机的并发名额已满时稍后重试，不占用线程等待
+          if (!politenessServer.tryAcquireSlot(webUrl)) {
+            scheduler.schedule(this, SLOT_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+            return;
+          }
+        } catch (RuntimeException e) {
+          callback.failed(webUrl, e);
+          return;
+        }
+        scheduleExecute(webUrl, callback);
+      }
+    };
+    acquireSlot.run();
+  }
+
+  /**
+   * 占用主机的并发名额后预约抓取时间，到期后发出请求
+   */
+  private void scheduleExecute(final WebURL webUrl, final PendingFetch callback) {
+    Runnable execute = new Runnable() {
+      @Override
+      public void run() {
+        execute(webUrl, callback);
+      }
+    };
+    try {
+      long wait = politenessServer.reserveTurn(webUrl);
+      if (wait > 0) {
+        scheduler.schedule(execute, wait, TimeUnit.MILLISECONDS);
+      } else {
+        execute.run();
+      }
+    } catch (RuntimeException e) {
+      politenessServer.releaseSlot(webUrl);
+      callback.failed(webUrl, e);
+    }
+  }
+
+  private void execute(final WebURL webUrl, final PendingFetch callback) {
+    final String toFetchURL = webUrl.getURL();
+    final HttpUriRequest request;
+    try {
+      request = newHttpUriRequest(toFetchURL);
+    } catch (RuntimeException e) {
+      politenessServer.releaseSlot(webUrl);
+      callback.failed(webUrl, e);
+      return;
+    }
+
+    final long start = System.currentTimeMillis();
+    final BoundedResponseConsumer consumer = new BoundedResponseConsumer(contentReader);
+    final HttpClientContext context = HttpClientContext.create();
+    try {
+      asyncClient.execute(HttpAsyncMethods.create(request), consumer, context, new FutureCallback<HttpResponse>() {
+        @Override
+        public void completed(HttpResponse response) {
+          //响应消费者接收完全部内容后才回调，此时释放名额，记录的响应时间包括下载内容的时间
+          recordConnectionUse(context);
+          politenessServer.onResponse(webUrl, System.currentTimeMillis() - start,
+                                      response.getStatusLine().getStatusCode());
+          complete(response, false);
+        }
+
+        @Override
+        public void failed(Exception ex) {
+          if (consumer.getTruncatedResponse() != null) {
+            //保留了前 maxDownloadSize 字节，连接已经关闭
+            politenessServer.onResponse(webUrl, System.currentTimeMillis() - start,
+                                        consumer.getTruncatedResponse().getStatusLine().getStatusCode());
+            complete(consumer.getTruncatedResponse(), true);
+          } else if (consumer.getOversizeLength() >= 0) {
+            politenessServer.releaseSlot(webUrl); //内容过大不是主机的错误
+            callback.failed(webUrl, new PageBiggerThanMaxSizeException(consumer.getOversizeLength()));
+          } else {
+            politenessServer.onResponse(webUrl, System.currentTimeMillis() - start, -1);
+            callback.failed(webUrl, ex);
+          }
+        }
+
+        private void complete(HttpResponse response, boolean truncated) {
+          PageFetchResult fetchResult = new PageFetchResult();
+          try {
+            handleResponse(toFetchURL, request, response, fetchResult);
+          } catch (Exception e) {
+            //在 I/O 线程中执行，异常不能抛出，否则回调不会发生并且可能导致 I/O 反应器停止
+            callback.failed(webUrl, e);
+            return;
+          }
+          fetchResult.setContentTruncated(truncated);
+          callback.completed(webUrl, fetchResult);
+        }
+
+        @Override
+        public void cancelled() {
+          politenessServer.releaseSlot(webUrl);
+          callback.failed(webUrl, new InterruptedIOException("Request cancelled: " + toFetchURL));
+        }
+      });
+    } catch (RuntimeException e) {
+      politenessServer.releaseSlot(webUrl);
+      callback.failed(webUrl, e);
+    }
+  }
+
+  private void release() {
+    inFlight.decrementAndGet();
+    inFlightPermits.release();
+  }
+
+  /**
+   * 一个还没有回调的请求。保证只回调一次：回调时释放请求名额，并从 pendingFetches 中移除
+   */
+  private class PendingFetch implements FetchCallback {
+    private final WebURL webUrl;
+    private final FetchCallback callback;
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    PendingFetch(WebURL webUrl, FetchCallback callback) {
+      this.webUrl = webUrl;
+      this.callback = callback;
+    }
+
+    private boolean finish() {
+      if (!done.compareAndSet(false, true)) {
+        return false;
+      }
+      pendingFetches.remove(this);
+      release();
+      return true;
+    }
+
+    @Override
+    public void completed(WebURL webUrl, PageFetchResult fetchResult) {
+      if (finish()) {
+        callback.completed(webUrl, fetchResult);
+      } else {
+        fetchResult.discardContentIfNotConsumed();
+      }
+    }
+
+    @Override
+    public void failed(WebURL webUrl, Exception e) {
+      if (finish()) {
+        callback.failed(webUrl, e);
+      }
+    }
+  }
+
+  /**
+   * 通过异步引擎抓取网页，并等待抓取完成。
+   */
+  @Override
+  public PageFetchResult fetchPage(WebURL webUrl)
+      throws InterruptedException, IOException, PageBiggerThanMaxSizeException {
+    BlockingFetchCallback callback = new BlockingFetchCallback();
+    fetchPageAsync(webUrl, callback);
+    return callback.get();
+  }
+
+  /**
+   * @return 当前进行中的请求数（包括等待抓取间隔的请求）
+   */
+  public int getInFlightCount() {
+    return inFlight.get();
+  }
+
+  @Override
+  public synchronized void shutDown() {
+    shutDown = true;
+    //等待名额和抓取时间的定时任务被丢弃，这些请求以及关闭客户端时没有回调的请求都回调失败
+    scheduler.shutdownNow();
+    try {
+      asyncClient.close();
+    } catch (IOException e) {
+      logger.warn("Exception thrown while closing async http client", e);
+    }
+    for (PendingFetch pending : pendingFetches.toArray(new PendingFetch[0])) {
+      pending.failed(pending.webUrl, new InterruptedIOException("Fetcher is shut down: " + pending.webUrl.getURL()));
+    }
+    super.shutDown();
+  }
+
+  /**
+   * 边接收边限制内容大小的响应消费者。
+   * 响应声明的内容长度超过 maxDownloadSize 时不接收内容直接中止；没有声明长度（例如分块传输）时，
+   * 接收的内容写入 {@link BoundedContentReader} 池中的块，超过上限时立即中止，不会先把整个响应读入内存。
+   * 开启截断时保留前 maxDownloadSize 字节，由 {@link #getTruncatedResponse()} 取得。
+   */
+  private static class BoundedResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+    private final BoundedContentReader reader;
+    private final boolean truncate;
+    private volatile HttpResponse response;
+    private volatile HttpResponse truncatedResponse;
+    private volatile long oversizeLength = -1;
+    private ContentType contentType;
+    private BoundedContentReader.Buffer buffer;
+
+    BoundedResponseConsumer(BoundedContentReader reader) {
+      this.reader = reader;
+      this.truncate = reader.getConfig().isTruncateOversizedContent();
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+      this.response = response;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+      long length = entity.getContentLength();
+      if ((length > reader.getConfig().getMaxDownloadSize()) && !truncate) {
+        oversizeLength = length;
+        throw new ContentTooLongException("Entity content is too long: " + length);
+      }
+      this.contentType = contentType;
+      this.buffer = reader.newBuffer();
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+      while (!buffer.isOverflow() && (buffer.read(decoder) > 0)) {
+        // 继续读取
+      }
+      if (buffer.isOverflow()) {
+        if (truncate) {
+          truncatedResponse = buildResult(null);
+        } else {
+          oversizeLength = buffer.size();
+        }
+        //中止接收，剩余的内容不再下载
+        throw new ContentTooLongException("Entity content is too long: more than " + (buffer.size() - 1));
+      }
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) {
+      if (buffer != null) {
+        try {
+          BoundedContentReader.Content content = buffer.toContent();
+          ByteArrayEntity entity = new ByteArrayEntity(content.getData(), contentType);
+          HttpEntity original = response.getEntity();
+          if (original != null) {
+            entity.setContentEncoding(original.getContentEncoding());
+          }
+          response.setEntity(entity);
+        } catch (PageBiggerThanMaxSizeException e) {
+          throw new IllegalStateException(e); //超过上限时已经在接收过程中中止
+        }
+      }
+      return response;
+    }
+
+    @Override
+    protected void releaseResources() {
+      if (buffer != null) {
+        buffer.release();
+        buffer = null;
+      }
+    }
+
+    HttpResponse getTruncatedResponse() {
+      return truncatedResponse;
+    }
+
+    long getOversizeLength() {
+      return oversizeLength;
+    }
+  }
+
+  /**
+   * 把异步回调转换为同步等待。
+   */
+  private static class BlockingFetchCallback implements FetchCallback {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private PageFetchResult fetchResult;
+    private Exception exception;
+
+    @Override
+    public void completed(WebURL webUrl, PageFetchResult fetchResult) {
+      this.fetchResult = fetchResult;
+      done.countDown();
+    }
+
+    @Override
+    public void failed(WebURL webUrl, Exception e) {
+      this.exception = e;
+      done.countDown();
+    }
+
+    PageFetchResult get() throws InterruptedException, IOException, PageBiggerThanMaxSizeException {
+      done.await();
+      if (exception instanceof PageBiggerThanMaxSizeException) {
+        throw (PageBiggerThanMaxSizeException) exception;
+      } else if (exception instanceof IOException) {
+        throw (IOException) exception;
+      } else if (exception instanceof RuntimeException) {
+        throw (RuntimeException) exception;
+      } else if (exception != null) {
+        throw new IOException(exception);
+      }
+      return fetchResult;
+    }
+  }
+}
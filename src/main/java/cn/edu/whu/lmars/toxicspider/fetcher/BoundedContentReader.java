@@ -0,0 +1,264 @@
+package cn.edu.whu.lmars.toxicspider.fetcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.nio.ContentDecoder;
+
+import cn.edu.whu.lmars.toxicspider.crawler.Configurable;
+import cn.edu.whu.lmars.toxicspider.crawler.CrawlConfig;
+import cn.edu.whu.lmars.toxicspider.crawler.exceptions.PageBiggerThanMaxSizeException;
+
+/**
+ * 限制大小的网页内容读取器。
+ * 边读边检查大小，不依赖 Content-Length：超过 maxDownloadSize 时立即停止读取，
+ * 默认抛出 PageBiggerThanMaxSizeException；开启 truncateOversizedContent 时保留前 maxDownloadSize 字节继续解析。
+ * 内容读入从池中取得的固定大小的块，读完后只按实际大小复制一次，块归还到池中重复使用，
+ * 不会像 EntityUtils.toByteArray 那样为分块传输的大响应不断扩容数组。
+ *
+ * 停止读取后响应中剩余的内容没有读完，调用者应中止请求（而不是读完剩余内容）再释放连接。
+ *
+ * @author REN
+ */
+public class BoundedContentReader extends Configurable {
+
+  //池中每个块的大小
+  static final int CHUNK_SIZE = 16 * 1024;
+
+  //池中最多保留的块数，超出的块交给垃圾回收
+  private static final int MAX_POOLED_CHUNKS = 1024;
+
+  private final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooledChunks = new AtomicInteger();
+
+  /**
+   * 读取的内容
+   */
+  public static class Content {
+    private final byte[] data;
+    private final boolean truncated;
+
+    Content(byte[] data, boolean truncated) {
+      this.data = data;
+      this.truncated = truncated;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    /**
+     * @return 内容是否超过 maxDownloadSize 被截断
+     */
+    public boolean isTruncated() {
+      return truncated;
+    }
+  }
+
+  public BoundedContentReader(CrawlConfig config) {
+    super(config);
+  }
+
+  /**
+   * 读取实体的内容。读到结尾时关闭内容流；超过大小上限时不关闭，由调用者中止请求。
+   *
+   * @param entity 响应实体
+   * @return 读取的内容
+   * @throws PageBiggerThanMaxSizeException 内容超过 maxDownloadSize 并且没有开启 truncateOversizedContent
+   */
+  public Content read(HttpEntity entity) throws IOException, PageBiggerThanMaxSizeException {
+    InputStream in = entity.getContent();
+    if (in == null) {
+      return new Content(new byte[0], false);
+    }
+    Buffer buffer = newBuffer();
+    try {
+      while (!buffer.isOverflow() && (buffer.read(in) >= 0)) {
+        // 继续读取
+      }
+      if (!buffer.isOverflow()) {
+        in.close();
+      }
+      return buffer.toContent();
+    } finally {
+      buffer.release();
+    }
+  }
+
+  /**
+   * 读取并丢弃实体的内容，最多读取 maxDownloadSize 字节，只占用池中的一个块。
+   * 读到结尾时关闭内容流，连接可以复用；声明的长度或者读取的字节数超过上限时停止读取并且不关闭，由调用者中止请求。
+   *
+   * @param entity 响应实体
+   * @return 内容是否已经全部读完
+   */
+  public boolean discard(HttpEntity entity) throws IOException {
+    if (entity.getContentLength() > config.getMaxDownloadSize()) {
+      return false;
+    }
+    InputStream in = entity.getContent();
+    if (in == null) {
+      return true;
+    }
+    byte[] chunk = borrowChunk();
+    try {
+      long remaining = (long) config.getMaxDownloadSize() + 1;
+      int n;
+      while ((remaining > 0) && ((n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining))) >= 0)) {
+        remaining -= n;
+      }
+      if (remaining <= 0) {
+        return false;
+      }
+      in.close();
+      return true;
+    } finally {
+      returnChunk(chunk);
+    }
+  }
+
+  /**
+   * @return 新的缓冲区，用完后必须调用 {@link Buffer#release()}
+   */
+  public Buffer newBuffer() {
+    return new Buffer();
+  }
+
+  private byte[] borrowChunk() {
+    byte[] chunk = pool.poll();
+    if (chunk == null) {
+      return new byte[CHUNK_SIZE];
+    }
+    pooledChunks.decrementAndGet();
+    return chunk;
+  }
+
+  private void returnChunk(byte[] chunk) {
+    if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+      pool.offer(chunk);
+    } else {
+      pooledChunks.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return 池中空闲的块数
+   */
+  public int getPooledChunks() {
+    return pooledChunks.get();
+  }
+
+  /**
+   * 由池中的块组成的缓冲区，最多接收 maxDownloadSize + 1 字节（多出的一个字节用于判断内容超过上限）。
+   * 同步读取（InputStream）和异步读取（ContentDecoder）共用。不是线程安全的。
+   */
+  public class Buffer {
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final long limit = (long) config.getMaxDownloadSize() + 1;
+    private byte[] current;
+    private int position;
+    private long size = 0;
+
+    private Buffer() {
+    }
+
+    /**
+     * 当前块已满时取一个新块，返回当前块中本次最多可以写入的字节数
+     */
+    private int prepare() {
+      if ((current == null) || (position == current.length)) {
+        current = borrowChunk();
+        chunks.add(current);
+        position = 0;
+      }
+      return (int) Math.min(current.length - position, limit - size);
+    }
+
+    /**
+     * 从输入流读取一次
+     * @return 读取的字节数，流结束时返回 -1
+     */
+    public int read(InputStream in) throws IOException {
+      int length = prepare();
+      if (length <= 0) {
+        return 0;
+      }
+      int n = in.read(current, position, length);
+      if (n > 0) {
+        position += n;
+        size += n;
+      }
+      return n;
+    }
+
+    /**
+     * 从异步解码器读取一次
+     * @return 读取的字节数，内容结束时返回 -1
+     */
+    public int read(ContentDecoder decoder) throws IOException {
+      int length = prepare();
+      if (length <= 0) {
+        return 0;
+      }
+      int n = decoder.read(ByteBuffer.wrap(current, position, length));
+      if (n > 0) {
+        position += n;
+        size += n;
+      }
+      return n;
+    }
+
+    /**
+     * @return 已经读取的字节数（超过上限时为 maxDownloadSize + 1）
+     */
+    public long size() {
+      return size;
+    }
+
+    /**
+     * @return 读取的内容是否超过 maxDownloadSize
+     */
+    public boolean isOverflow() {
+      return size >= limit;
+    }
+
+    /**
+     * 复制读取的内容（最多 maxDownloadSize 字节）。超过上限并且没有开启截断时抛出异常
+     */
+    public Content toContent() throws PageBiggerThanMaxSizeException {
+      boolean truncated = isOverflow();
+      if (truncated && !config.isTruncateOversizedContent()) {
+        throw new PageBiggerThanMaxSizeException(size);
+      }
+      int length = (int) Math.min(size, config.getMaxDownloadSize());
+      byte[] data = new byte[length];
+      int copied = 0;
+      for (byte[] chunk : chunks) {
+        int n = Math.min(chunk.length, length - copied);
+        if (n <= 0) {
+          break;
+        }
+        System.arraycopy(chunk, 0, data, copied, n);
+        copied += n;
+      }
+      return new Content(data, truncated);
+    }
+
+    /**
+     * 把块归还到池中
+     */
+    public void release() {
+      for (byte[] chunk : chunks) {
+        returnChunk(chunk);
+      }
+      chunks.clear();
+      current = null;
+    }
+  }
+}
@@ -4,11 +4,14 @@ import java.io.IOException;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cn.edu.whu.lmars.toxicspider.crawler.Page;
+import cn.edu.whu.lmars.toxicspider.crawler.exceptions.PageBiggerThanMaxSizeException;
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
 
 /**
  * 网页抓取结果类，此类包含了网页抓取的一些结果。如：
@@ -31,21 +34,102 @@ public class PageFetchResult {
   protected String fetchedUrl = null;
   protected String movedToUrl = null;
 
-  public boolean fetchContent(Page page) {
-	    try {
-	      page.load(entity);
-	      page.setFetchResponseHeaders(responseHeaders);
-	      return true;
-	    } catch (Exception e) {
-	      logger.info("Exception while fetching content for: {} [{}]", page.getWebURL().getURL(), e.getMessage());
-	    }
-	    return false;
-	  }
+  protected BoundedContentReader contentReader = null; //限制内容大小的读取器，为null时不限制
+  protected HttpUriRequest request = null; //内容没有读完时用于中止请求
+  protected boolean contentTruncated = false; //实体中的内容已经被截断（异步抓取时在接收过程中截断）
+  protected boolean aborted = false;
+  protected boolean discarded = false; //剩余的内容已经放弃，再次调用 discardContentIfNotConsumed 时不做任何处理
+
+  //内容读取完成（或者放弃）之后才释放主机的并发名额并记录响应时间，为null时已经释放
+  protected PolitenessServer politenessServer = null;
+  protected WebURL politenessUrl = null;
+  protected long requestStartTime;
+
+  /**
+   * 加载网页内容
+   *
+   * @param page 网页
+   * @return 是否加载成功
+   * @throws PageBiggerThanMaxSizeException 读取过程中发现内容超过 maxDownloadSize
+   */
+  public boolean fetchContent(Page page) throws PageBiggerThanMaxSizeException {
+    try {
+      page.load(entity, contentReader);
+      if (contentTruncated) {
+        page.setTruncated(true);
+      }
+      if (page.isTruncated()) {
+        //剩余的内容不再下载
+        abort();
+      }
+      page.setFetchResponseHeaders(responseHeaders);
+      finishRequest(false);
+      return true;
+    } catch (PageBiggerThanMaxSizeException e) {
+      abort();
+      finishRequest(false); //内容过大不是主机的错误
+      throw e;
+    } catch (Exception e) {
+      logger.info("Exception while fetching content for: {} [{}]", page.getWebURL().getURL(), e.getMessage());
+      finishRequest(true);
+    }
+    return false;
+  }
+
+  /**
+   * 设置请求完成时需要通知的 PolitenessServer。同步抓取时响应头到达后内容还没有下载，
+   * 直到内容读完或者被放弃（{@link #fetchContent(Page)}、{@link #discardContentIfNotConsumed()}）才释放主机的并发名额，
+   * 记录的响应时间也包括下载内容的时间。
+   * @param politenessServer 发出请求时占用了名额的 PolitenessServer
+   * @param webUrl 抓取的URL
+   * @param startTime 发出请求的时间
+   */
+  public void setPoliteness(PolitenessServer politenessServer, WebURL webUrl, long startTime) {
+    this.politenessServer = politenessServer;
+    this.politenessUrl = webUrl;
+    this.requestStartTime = startTime;
+  }
+
+  /**
+   * 释放主机的并发名额并记录响应，只执行一次
+   * @param failed 读取内容时是否出现连接错误
+   */
+  private void finishRequest(boolean failed) {
+    PolitenessServer server = politenessServer;
+    if (server != null) {
+      politenessServer = null;
+      server.onResponse(politenessUrl, System.currentTimeMillis() - requestStartTime, failed ? -1 : statusCode);
+    }
+  }
+
+  /**
+   * 中止请求并关闭连接，不再读取剩余的内容。用于内容没有读完就停止的情况，
+   * 读完剩余内容再复用连接对超大的响应（例如无限长的分块传输）来说代价太大。
+   */
+  public void abort() {
+    if (request != null) {
+      request.abort();
+    }
+    aborted = true;
+  }
 
+  /**
+   * 放弃没有读取的内容并释放主机的并发名额。可以多次调用，只有第一次生效。
+   * 有限制大小的读取器时最多读取 maxDownloadSize 字节，超过（或者声明的长度超过）上限时中止请求，
+   * 超大的错误页面或者重定向页面不会一直占用线程和主机的名额。
+   */
   public void discardContentIfNotConsumed() {
+    if (discarded) {
+      return;
+    }
+    discarded = true;
     try {
-      if (entity != null) {
-        EntityUtils.consume(entity);
+      if ((entity != null) && !aborted) {
+        if (contentReader == null) {
+          EntityUtils.consume(entity);
+        } else if (!contentReader.discard(entity)) {
+          abort();
+        }
       }
     } catch (IOException ignored) {
       // We can EOFException (extends IOException) exception. It can happen on compressed streams which are not
@@ -53,9 +137,11 @@ public class PageFetchResult {
       // We can ignore this exception. It can happen if the stream is closed.
     } catch (Exception e) {
       logger.warn("Unexpected error occurred while trying to discard content", e);
+    } finally {
+      finishRequest(false);
     }
   }
-  
+
   public int getStatusCode() {
     return statusCode;
   }
@@ -95,4 +181,28 @@ public class PageFetchResult {
   public void setMovedToUrl(String movedToUrl) {
     this.movedToUrl = movedToUrl;
   }
+
+  public BoundedContentReader getContentReader() {
+    return contentReader;
+  }
+
+  public void setContentReader(BoundedContentReader contentReader) {
+    this.contentReader = contentReader;
+  }
+
+  public HttpUriRequest getRequest() {
+    return request;
+  }
+
+  public void setRequest(HttpUriRequest request) {
+    this.request = request;
+  }
+
+  public boolean isContentTruncated() {
+    return contentTruncated;
+  }
+
+  public void setContentTruncated(boolean contentTruncated) {
+    this.contentTruncated = contentTruncated;
+  }
 }
\ No newline at end of file
@@ -6,13 +6,15 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 
 import org.apache.http.Header;
+import org.apache.http.HttpConnection;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
@@ -27,6 +29,7 @@ import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
@@ -39,6 +42,7 @@ import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContexts;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,10 +68,14 @@ public class PageFetcher extends Configurable {
 
   protected PoolingHttpClientConnectionManager connectionManager; //连接管理器
   protected CloseableHttpClient httpClient; //httpClient
-  protected final Object mutex = new Object(); //锁
-  protected long lastFetchTime = 0; //上次抓取时间
+  protected PolitenessServer politenessServer; //按主机控制抓取间隔
+  protected BoundedContentReader contentReader; //边读取边限制网页内容大小
   protected IdleConnectionMonitorThread connectionMonitorThread = null; //闲置链接监视线程
 
+  //统计了连接的请求数，以及其中复用已有连接（keep-alive）的请求数
+  protected final AtomicLong connectionRequests = new AtomicLong();
+  protected final AtomicLong reusedConnectionRequests = new AtomicLong();
+
   /**
    * 构造方法
    * @param config CrawlConfig 爬虫配置参数
@@ -75,6 +83,9 @@ public class PageFetcher extends Configurable {
   public PageFetcher(CrawlConfig config) {
     super(config);
 
+    politenessServer = new PolitenessServer(config);
+    contentReader = new BoundedContentReader(config);
+
     RequestConfig requestConfig =
         RequestConfig.custom().setExpectContinueEnabled(false).setCookieSpec(CookieSpecs.DEFAULT)
                      .setRedirectsEnabled(false).setSocketTimeout(config.getSocketTimeout())
@@ -84,12 +95,7 @@ public class PageFetcher extends Configurable {
     connRegistryBuilder.register("http", PlainConnectionSocketFactory.INSTANCE);
     if (config.isIncludeHttpsPages()) {
       try { 
-        SSLContext sslContext = SSLContexts.custom().loadTrustMaterial(null, new TrustStrategy() {
-          @Override
-          public boolean isTrusted(final X509Certificate[] chain, String authType) {
-            return true;
-          }
-        }).build();
+        SSLContext sslContext = buildTrustAllSslContext();
         SSLConnectionSocketFactory sslsf =
             new SSLConnectionSocketFactory(sslContext, SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
         connRegistryBuilder.register("https", sslsf);
@@ -102,7 +108,7 @@ public class PageFetcher extends Configurable {
     Registry<ConnectionSocketFactory> connRegistry = connRegistryBuilder.build();
     connectionManager = new PoolingHttpClientConnectionManager(connRegistry);
     connectionManager.setMaxTotal(config.getMaxTotalConnections());
-    connectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerHost());
+    connectionManager.setDefaultMaxPerRoute(getMaxConnectionsPerRoute());
 
     HttpClientBuilder clientBuilder = HttpClientBuilder.create();
     clientBuilder.setDefaultRequestConfig(requestConfig);
@@ -135,6 +141,20 @@ public class PageFetcher extends Configurable {
     connectionMonitorThread.start();
   }
 
+  /**
+   * 创建一个信任所有证书的 SSLContext，用于抓取 https 网页。
+   * @return SSLContext
+   * @throws Exception
+   */
+  protected static SSLContext buildTrustAllSslContext() throws Exception {
+    return SSLContexts.custom().loadTrustMaterial(null, new TrustStrategy() {
+      @Override
+      public boolean isTrusted(final X509Certificate[] chain, String authType) {
+        return true;
+      }
+    }).build();
+  }
+
   /**
    * 授权处理
    * @param authInfos
@@ -218,72 +238,155 @@ public class PageFetcher extends Configurable {
     HttpUriRequest request = null;
     try {
       request = newHttpUriRequest(toFetchURL);
-      // 通过加一个同步锁，保证间隔抓取时间不超过规定时间
-      synchronized (mutex) {
-        long now = (new Date()).getTime();
-        if ((now - lastFetchTime) < config.getPolitenessDelay()) {
-          Thread.sleep(config.getPolitenessDelay() - (now - lastFetchTime));
+      // 按主机等待抓取间隔和并发名额，不同主机的抓取互不阻塞
+      politenessServer.waitForTurn(webUrl);
+
+      long start = System.currentTimeMillis();
+      int statusCode = -1; //没有收到响应时按连接错误记录
+      boolean handedOver = false;
+      try {
+        HttpClientContext context = HttpClientContext.create();
+        CloseableHttpResponse response = httpClient.execute(request, context);
+        statusCode = response.getStatusLine().getStatusCode();
+        recordConnectionUse(context);
+        try {
+          handleResponse(toFetchURL, request, response, fetchResult);
+        } catch (PageBiggerThanMaxSizeException e) {
+          response.close();
+          throw e;
+        }
+        //没有 Content-Length 或者截断时，读取内容的过程中限制大小
+        fetchResult.setContentReader(contentReader);
+        fetchResult.setRequest(request);
+        //内容还没有下载，读完或者放弃内容之后再释放主机的并发名额
+        fetchResult.setPoliteness(politenessServer, webUrl, start);
+        handedOver = true;
+        return fetchResult;
+      } finally {
+        if (!handedOver) {
+          politenessServer.onResponse(webUrl, System.currentTimeMillis() - start, statusCode);
         }
-        lastFetchTime = (new Date()).getTime();
       }
 
-      CloseableHttpResponse response = httpClient.execute(request);
-      fetchResult.setEntity(response.getEntity());
-      fetchResult.setResponseHeaders(response.getAllHeaders());
+    } finally {
+      if ((fetchResult.getEntity() == null) && (request != null)) {
+        request.abort();
+      }
+    }
+  }
 
-      //设置相应状态码
-      int statusCode = response.getStatusLine().getStatusCode();
+  /**
+   * 根据响应填充抓取结果：状态码、响应头、实体、重定向地址和实际抓取的地址。
+   * 同步抓取和异步抓取共用此方法。
+   *
+   * @param toFetchURL 要抓取的URL
+   * @param request 发出的请求
+   * @param response 收到的响应
+   * @param fetchResult 要填充的抓取结果
+   * @throws PageBiggerThanMaxSizeException 响应声明的内容长度超过 maxDownloadSize，并且没有开启截断
+   */
+  protected void handleResponse(String toFetchURL, HttpUriRequest request, HttpResponse response,
+                                PageFetchResult fetchResult) throws PageBiggerThanMaxSizeException {
+    fetchResult.setEntity(response.getEntity());
+    fetchResult.setResponseHeaders(response.getAllHeaders());
 
-      //处理重定向( 3xx )
-      if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY ||
-          statusCode == HttpStatus.SC_MULTIPLE_CHOICES || statusCode == HttpStatus.SC_SEE_OTHER ||
-          statusCode == HttpStatus.SC_TEMPORARY_REDIRECT ||
-          statusCode == 308) { //https://issues.apache.org/jira/browse/HTTPCORE-389
+    //设置相应状态码
+    int statusCode = response.getStatusLine().getStatusCode();
 
-        Header header = response.getFirstHeader("Location");
-        if (header != null) {
-          String movedToUrl = URLCanonicalizer.getCanonicalURL(header.getValue(), toFetchURL);
-          fetchResult.setMovedToUrl(movedToUrl);
-        }
-      } else if (statusCode >= 200 && statusCode <= 299) { // 如果是2XX
-        fetchResult.setFetchedUrl(toFetchURL);
-        String uri = request.getURI().toString();
-        if (!uri.equals(toFetchURL)) {
-          if (!URLCanonicalizer.getCanonicalURL(uri).equals(toFetchURL)) {
-            fetchResult.setFetchedUrl(uri);
-          }
+    //处理重定向( 3xx )
+    if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY ||
+        statusCode == HttpStatus.SC_MULTIPLE_CHOICES || statusCode == HttpStatus.SC_SEE_OTHER ||
+        statusCode == HttpStatus.SC_TEMPORARY_REDIRECT ||
+        statusCode == 308) { //https://issues.apache.org/jira/browse/HTTPCORE-389
+
+      Header header = response.getFirstHeader("Location");
+      if (header != null) {
+        String movedToUrl = URLCanonicalizer.getCanonicalURL(header.getValue(), toFetchURL);
+        fetchResult.setMovedToUrl(movedToUrl);
+      }
+    } else if (statusCode >= 200 && statusCode <= 299) { // 如果是2XX
+      fetchResult.setFetchedUrl(toFetchURL);
+      String uri = request.getURI().toString();
+      if (!uri.equals(toFetchURL)) {
+        if (!URLCanonicalizer.getCanonicalURL(uri).equals(toFetchURL)) {
+          fetchResult.setFetchedUrl(uri);
         }
+      }
 
-        //检查内容长度是否超出上限值
-        if (fetchResult.getEntity() != null) {
-          long size = fetchResult.getEntity().getContentLength();
-          if (size == -1) {
-            Header length = response.getLastHeader("Content-Length");
-            if (length == null) {
-              length = response.getLastHeader("Content-length");
-            }
-            if (length != null) {
-              size = Integer.parseInt(length.getValue());
-            }
+      //检查内容长度是否超出上限值
+      if (fetchResult.getEntity() != null) {
+        long size = fetchResult.getEntity().getContentLength();
+        if (size == -1) {
+          Header length = response.getLastHeader("Content-Length");
+          if (length == null) {
+            length = response.getLastHeader("Content-length");
           }
-          if (size > config.getMaxDownloadSize()) {
-            response.close();
-            throw new PageBiggerThanMaxSizeException(size);
+          if (length != null) {
+            size = Integer.parseInt(length.getValue());
           }
         }
+        if ((size > config.getMaxDownloadSize()) && !config.isTruncateOversizedContent()) {
+          throw new PageBiggerThanMaxSizeException(size);
+        }
       }
+    }
 
-      fetchResult.setStatusCode(statusCode);
-      return fetchResult;
+    fetchResult.setStatusCode(statusCode);
+  }
 
-    } finally {
-      if ((fetchResult.getEntity() == null) && (request != null)) {
-        request.abort();
-      }
+  /**
+   * 记录请求所使用的连接是否是复用的：连接上发出过不止一个请求即为复用。
+   * 连接已经释放回连接池（例如响应没有内容）时无法判断，不计入统计。
+   */
+  protected void recordConnectionUse(HttpContext context) {
+    HttpConnection connection = HttpClientContext.adapt(context).getConnection();
+    if (connection == null) {
+      return;
+    }
+    long requests;
+    try {
+      requests = connection.getMetrics().getRequestCount();
+    } catch (RuntimeException e) {
+      return;
+    }
+    connectionRequests.incrementAndGet();
+    if (requests > 1) {
+      reusedConnectionRequests.incrementAndGet();
     }
   }
 
+  /**
+   * @return 复用已有连接的请求占统计请求的比例，没有请求时返回0
+   */
+  public double getConnectionReuseRate() {
+    long requests = connectionRequests.get();
+    return (requests == 0) ? 0 : (double) reusedConnectionRequests.get() / requests;
+  }
+
+  public long getConnectionRequests() {
+    return connectionRequests.get();
+  }
+
+  public long getReusedConnectionRequests() {
+    return reusedConnectionRequests.get();
+  }
+
+  /**
+   * 连接池中每个主机的连接数上限。每个主机的并发由 PolitenessServer 控制，连接池不能比请求数上限更小
+   */
+  protected int getMaxConnectionsPerRoute() {
+    return Math.max(config.getMaxConnectionsPerHost(), politenessServer.getHighestRequestLimit());
+  }
+
+  public PolitenessServer getPolitenessServer() {
+    return politenessServer;
+  }
+
   public synchronized void shutDown() {
+    if (connectionRequests.get() > 0) {
+      logger.info("Connection reuse: {} of {} requests ({})", reusedConnectionRequests.get(), connectionRequests.get(),
+                  String.format("%.2f", getConnectionReuseRate()));
+    }
     if (connectionMonitorThread != null) {
       connectionManager.shutdown();
       connectionMonitorThread.shutdown();
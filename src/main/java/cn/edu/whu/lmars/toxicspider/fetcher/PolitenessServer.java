@@ -0,0 +1,533 @@
+package cn.edu.whu.lmars.toxicspider.fetcher;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import cn.edu.whu.lmars.toxicspider.crawler.Configurable;
+import cn.edu.whu.lmars.toxicspider.crawler.CrawlConfig;
+import cn.edu.whu.lmars.toxicspider.frontier.HostPolicy;
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+
+/**
+ * 抓取间隔（礼貌性）管理类。
+ * 按主机（或注册域名）分别记录下一次允许抓取的时间，
+ * 抓取不同主机的线程之间互不等待，同一主机的两次请求之间仍然保证抓取间隔。
+ *
+ * 每个主机还记录响应时间和错误率，并限制同时进行的请求数（maxRequestsPerHost，可以按主机模式用 hostRequestLimits 覆盖）。
+ * 开启 autoThrottle 时，抓取间隔和并发数根据响应情况按主机自动调整（参考 Scrapy 的 AutoThrottle）：
+ * 响应正常时间隔趋向 响应时间 / autoThrottleTargetConcurrency，出错时间隔加倍、并发数减半。
+ *
+ * @author REN
+ */
+public class PolitenessServer extends Configurable implements HostPolicy {
+
+  //每预约多少次抓取，清理一次长期未访问的主机记录
+  private static final int CLEANUP_INTERVAL = 10000;
+
+  //主机记录在最后一次允许抓取时间之后闲置多久（毫秒）可以被清理
+  private static final long IDLE_HOST_EXPIRY = 60000;
+
+  //出错后加倍的间隔至少为此值（毫秒），否则间隔为0的主机出错后不会放慢
+  private static final long MIN_BACKOFF_DELAY = 1000;
+
+  //响应时间和错误率的指数移动平均权重
+  private static final double LATENCY_WEIGHT = 0.2;
+  private static final double ERROR_WEIGHT = 0.1;
+
+  //acquireSlot 的返回值
+  private static final int SLOT_ACQUIRED = 1;
+  private static final int SLOT_BUSY = 0;
+  private static final int HOST_RETIRED = -1;
+
+  //主机（或域名） ---> 此主机的抓取时间记录
+  protected final ConcurrentMap<String, HostPoliteness> hosts = new ConcurrentHashMap<>();
+
+  private final AtomicLong reservations = new AtomicLong();
+
+  //hostRequestLimits 编译后的主机模式 ---> 请求数上限，按添加顺序匹配
+  private final Map<Pattern, Integer> requestLimits = new LinkedHashMap<>();
+
+  /**
+   * 单个主机的抓取时间记录、响应统计和并发限制。
+   * 使用 ReentrantLock 而不是 synchronized，虚拟线程等待并发名额时不会占住载体线程。
+   */
+  public static class HostPoliteness {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotReleased = lock.newCondition();
+
+    private long nextFetchTime = 0; //下一次允许抓取的时间
+    private boolean retired = false; //此记录是否已经被清理出 hosts
+
+    private long delay; //当前抓取间隔
+    private int concurrencyLimit; //同时进行的请求数上限
+    private final int maxConcurrency; //自动调整时 concurrencyLimit 的上限
+    private int activeRequests = 0;
+    private int successesSinceIncrease = 0;
+
+    private long requests = 0;
+    private long errors = 0;
+    private double averageLatency = 0;
+    private double errorRate = 0;
+
+    HostPoliteness(long delay, int concurrencyLimit, int maxConcurrency) {
+      this.delay = delay;
+      this.concurrencyLimit = concurrencyLimit;
+      this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * 预约一次抓取，返回需要等待的毫秒数。若此记录已被清理，返回 -1。
+     */
+    long reserve(long now) {
+      lock.lock();
+      try {
+        if (retired) {
+          return -1;
+        }
+        long fetchTime = Math.max(now, nextFetchTime);
+        nextFetchTime = fetchTime + delay;
+        return fetchTime - now;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * 占用一个并发名额。wait 为 true 时等待到有空闲名额
+     * @return SLOT_ACQUIRED、SLOT_BUSY（没有空闲名额且不等待）或者 HOST_RETIRED（此记录已被清理）
+     */
+    int acquireSlot(boolean wait) throws InterruptedException {
+      lock.lock();
+      try {
+        if (retired) {
+          return HOST_RETIRED;
+        }
+        while (activeRequests >= concurrencyLimit) {
+          if (!wait) {
+            return SLOT_BUSY;
+          }
+          slotReleased.await();
+        }
+        activeRequests++;
+        return SLOT_ACQUIRED;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * 释放并发名额，不记录响应（请求没有发出或者被取消）
+     */
+    void releaseSlot() {
+      lock.lock();
+      try {
+        activeRequests--;
+        slotReleased.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * 记录一次响应并释放并发名额；config 开启 autoThrottle 时调整抓取间隔和并发数
+     * @param latency 从发出请求到收到响应的时间（毫秒）
+     * @param error 是否是服务器错误（5xx、429）或者连接错误
+     * @param success 是否是正常的响应（2xx、3xx），只有正常的响应才会缩短间隔
+     */
+    void onResponse(long latency, boolean error, boolean success, CrawlConfig config) {
+      lock.lock();
+      try {
+        requests++;
+        averageLatency = (requests == 1) ? latency : averageLatency + LATENCY_WEIGHT * (latency - averageLatency);
+        if (error) {
+          errors++;
+        }
+        errorRate += ERROR_WEIGHT * ((error ? 1 : 0) - errorRate);
+
+        if (config.isAutoThrottle()) {
+          if (error) {
+            delay = Math.min(config.getAutoThrottleMaxDelay(), Math.max(delay * 2, MIN_BACKOFF_DELAY));
+            concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+            successesSinceIncrease = 0;
+          } else {
+            long target = (long) (latency / config.getAutoThrottleTargetConcurrency());
+            long newDelay = (delay + target) / 2;
+            //非正常的响应（例如404）通常很快，不能因此缩短间隔
+            if (success || (newDelay > delay)) {
+              delay = Math.max(config.getAutoThrottleMinDelay(), Math.min(config.getAutoThrottleMaxDelay(), newDelay));
+            }
+            //当前并发数下连续成功一轮，并发数加1
+            if ((++successesSinceIncrease >= concurrencyLimit) && (concurrencyLimit < maxConcurrency)) {
+              concurrencyLimit++;
+              successesSinceIncrease = 0;
+              slotReleased.signal();
+            }
+          }
+        }
+
+        activeRequests--;
+        slotReleased.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    boolean retireIfIdle(long now) {
+      lock.lock();
+      try {
+        if ((activeRequests == 0) && (nextFetchTime + IDLE_HOST_EXPIRY < now)) {
+          retired = true;
+        }
+        return retired;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return 当前抓取间隔（毫秒）
+     */
+    public long getDelay() {
+      lock.lock();
+      try {
+        return delay;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return 同时进行的请求数上限
+     */
+    public int getConcurrencyLimit() {
+      lock.lock();
+      try {
+        return concurrencyLimit;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return 还可以同时发出的请求数
+     */
+    int getFreeSlots() {
+      lock.lock();
+      try {
+        return Math.max(0, concurrencyLimit - activeRequests);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return 正在进行的请求数
+     */
+    public int getActiveRequests() {
+      lock.lock();
+      try {
+        return activeRequests;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public long getRequests() {
+      lock.lock();
+      try {
+        return requests;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public long getErrors() {
+      lock.lock();
+      try {
+        return errors;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return 响应时间的移动平均（毫秒）
+     */
+    public double getAverageLatency() {
+      lock.lock();
+      try {
+        return averageLatency;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return 错误率的移动平均，0 到 1 之间
+     */
+    public double getErrorRate() {
+      lock.lock();
+      try {
+        return errorRate;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public String toString() {
+      lock.lock();
+      try {
+        return String.format("delay %d ms, concurrency %d/%d, %d requests, %d errors, latency %.0f ms, error rate %.2f",
+                             delay, activeRequests, concurrencyLimit, requests, errors, averageLatency, errorRate);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  public PolitenessServer(CrawlConfig config) {
+    super(config);
+    for (Map.Entry<String, Integer> limit : config.getHostRequestLimits().entrySet()) {
+      requestLimits.put(compileHostPattern(limit.getKey()), limit.getValue());
+    }
+  }
+
+  /**
+   * 把主机模式转换为正则表达式，* 匹配任意字符，不区分大小写
+   */
+  private static Pattern compileHostPattern(String hostPattern) {
+    return Pattern.compile("\\Q" + hostPattern.replace("*", "\\E.*\\Q") + "\\E", Pattern.CASE_INSENSITIVE);
+  }
+
+  /**
+   * 获取此主机同时进行的请求数上限：第一个匹配的 hostRequestLimits 模式，没有匹配时为 maxRequestsPerHost。
+   * 主机带端口时，模式可以匹配带端口的主机，也可以匹配不带端口的主机名。
+   * @param hostKey 主机名，或者按域名控制抓取间隔时的注册域名
+   * @return 请求数上限，0 表示不限制
+   */
+  public int getRequestLimit(String hostKey) {
+    if (!requestLimits.isEmpty()) {
+      String hostName = hostKey;
+      int colon = hostKey.lastIndexOf(':');
+      if ((colon > 0) && ((hostKey.indexOf(':') == colon) || (hostKey.charAt(colon - 1) == ']'))) {
+        hostName = hostKey.substring(0, colon);
+      }
+      for (Map.Entry<Pattern, Integer> limit : requestLimits.entrySet()) {
+        if (limit.getKey().matcher(hostKey).matches() || limit.getKey().matcher(hostName).matches()) {
+          return limit.getValue();
+        }
+      }
+    }
+    return config.getMaxRequestsPerHost();
+  }
+
+  /**
+   * @return 所有主机中最大的请求数上限，0 表示有主机不限制。用于保证连接池不会比并发限制更小
+   */
+  public int getHighestRequestLimit() {
+    int highest = config.getMaxRequestsPerHost();
+    if (highest == 0) {
+      return 0;
+    }
+    for (int limit : requestLimits.values()) {
+      if (limit == 0) {
+        return 0;
+      }
+      highest = Math.max(highest, limit);
+    }
+    return highest;
+  }
+
+  /**
+   * 获取此URL计算抓取间隔时所使用的键：主机名，或者注册域名。
+   * @param webUrl
+   * @return
+   */
+  public String getPolitenessKey(WebURL webUrl) {
+    String key = config.isPolitenessPerDomain() ? webUrl.getDomain() : webUrl.getHost();
+    return (key == null) ? "" : key;
+  }
+
+  /**
+   * 等待直到可以抓取此URL所在的主机。
+   * 线程先等待此主机的并发名额，再预约自己的抓取时间后休眠，休眠期间不持有任何锁，
+   * 因此同一主机的多个线程会依次排队，而其他主机的线程不受影响。
+   * 返回后必须调用 {@link #onResponse(WebURL, long, int)} 或者 {@link #releaseSlot(WebURL)} 释放并发名额。
+   *
+   * @param webUrl 要抓取的URL
+   * @throws InterruptedException
+   */
+  public void waitForTurn(WebURL webUrl) throws InterruptedException {
+    String key = getPolitenessKey(webUrl);
+    HostPoliteness host;
+    do {
+      host = getHost(key);
+    } while (host.acquireSlot(true) == HOST_RETIRED);
+
+    try {
+      long wait = reserveTurn(webUrl);
+      if (wait > 0) {
+        Thread.sleep(wait);
+      }
+    } catch (InterruptedException e) {
+      host.releaseSlot();
+      throw e;
+    }
+  }
+
+  /**
+   * 不等待地占用此URL所在主机的一个并发名额，异步抓取时使用。
+   * 成功后必须调用 {@link #onResponse(WebURL, long, int)} 或者 {@link #releaseSlot(WebURL)} 释放。
+   *
+   * @param webUrl 要抓取的URL
+   * @return 是否占用成功
+   */
+  public boolean tryAcquireSlot(WebURL webUrl) {
+    String key = getPolitenessKey(webUrl);
+    try {
+      int result;
+      do {
+        result = getHost(key).acquireSlot(false);
+      } while (result == HOST_RETIRED);
+      return result == SLOT_ACQUIRED;
+    } catch (InterruptedException e) {
+      return false; //不等待时不会被中断
+    }
+  }
+
+  /**
+   * 为此URL所在的主机预约一次抓取，但不等待。
+   * 异步抓取时调用者应在返回的毫秒数之后再发出请求。
+   *
+   * @param webUrl 要抓取的URL
+   * @return 距离预约到的抓取时间还需要等待的毫秒数
+   */
+  public long reserveTurn(WebURL webUrl) {
+    String key = getPolitenessKey(webUrl);
+    long wait;
+    do {
+      wait = getHost(key).reserve(System.currentTimeMillis());
+    } while (wait < 0);
+
+    if ((reservations.incrementAndGet() % CLEANUP_INTERVAL) == 0) {
+      removeIdleHosts();
+    }
+    return wait;
+  }
+
+  /**
+   * 记录此URL所在主机的一次响应，并释放 waitForTurn 或 tryAcquireSlot 占用的并发名额。
+   *
+   * @param webUrl 抓取的URL
+   * @param latency 从发出请求到收到响应的时间（毫秒）
+   * @param statusCode 响应状态码，连接失败或超时时为 -1
+   */
+  public void onResponse(WebURL webUrl, long latency, int statusCode) {
+    HostPoliteness host = hosts.get(getPolitenessKey(webUrl));
+    if (host != null) {
+      boolean error = (statusCode < 0) || (statusCode >= 500) || (statusCode == 429);
+      boolean success = (statusCode >= 200) && (statusCode < 400);
+      host.onResponse(latency, error, success, config);
+    }
+  }
+
+  /**
+   * 释放并发名额，但不记录响应（请求没有发出、被取消或者因为本地原因失败）
+   */
+  public void releaseSlot(WebURL webUrl) {
+    HostPoliteness host = hosts.get(getPolitenessKey(webUrl));
+    if (host != null) {
+      host.releaseSlot();
+    }
+  }
+
+  /**
+   * @return 此主机当前的抓取间隔，还没有记录的主机返回初始间隔
+   */
+  @Override
+  public long getDelay(String hostKey) {
+    HostPoliteness host = hosts.get(hostKey);
+    return (host != null) ? host.getDelay() : getInitialDelay();
+  }
+
+  /**
+   * @return 此主机还可以同时发出的请求数，不限制时返回 Integer.MAX_VALUE
+   */
+  @Override
+  public int getFreeSlots(String hostKey) {
+    HostPoliteness host = hosts.get(hostKey);
+    return (host != null) ? host.getFreeSlots() : getInitialConcurrency(getRequestLimit(hostKey));
+  }
+
+  /**
+   * @return 各主机（或域名）的抓取间隔、并发数和响应统计，用于监控
+   */
+  public Map<String, HostPoliteness> getHosts() {
+    return Collections.unmodifiableMap(hosts);
+  }
+
+  /**
+   * 获取主机记录，不存在时创建。正在使用（有并发名额被占用）的记录不会被清理。
+   */
+  private HostPoliteness getHost(String key) {
+    HostPoliteness host = hosts.get(key);
+    if (host == null) {
+      int limit = getRequestLimit(key);
+      int maxConcurrency = (limit > 0) ? limit : (config.isAutoThrottle() ? config.getAutoThrottleMaxConcurrency() :
+                                                  Integer.MAX_VALUE);
+      HostPoliteness newHost = new HostPoliteness(getInitialDelay(), getInitialConcurrency(limit), maxConcurrency);
+      host = hosts.putIfAbsent(key, newHost);
+      if (host == null) {
+        host = newHost;
+      }
+    }
+    return host;
+  }
+
+  /**
+   * 新主机的并发数：自动调整时从1开始，否则为此主机的请求数上限
+   */
+  private int getInitialConcurrency(int requestLimit) {
+    if (config.isAutoThrottle()) {
+      return 1;
+    }
+    return (requestLimit > 0) ? requestLimit : Integer.MAX_VALUE;
+  }
+
+  private long getInitialDelay() {
+    long delay = config.getPolitenessDelay();
+    if (config.isAutoThrottle()) {
+      delay = Math.max(config.getAutoThrottleMinDelay(), Math.min(config.getAutoThrottleMaxDelay(), delay));
+    }
+    return delay;
+  }
+
+  /**
+   * 清理长时间未抓取的主机记录，防止爬取大量主机时内存无限增长。
+   */
+  protected void removeIdleHosts() {
+    long now = System.currentTimeMillis();
+    Iterator<HostPoliteness> iterator = hosts.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().retireIfIdle(now)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * @return 当前记录了抓取时间的主机（或域名）数量
+   */
+  public int getNumberOfHosts() {
+    return hosts.size();
+  }
+}
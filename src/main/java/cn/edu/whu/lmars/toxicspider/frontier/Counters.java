@@ -2,6 +2,7 @@ package cn.edu.whu.lmars.toxicspider.frontier;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,7 +46,7 @@ public class Counters extends Configurable {
   protected Database statisticsDB = null;
   protected Environment env;
 
-  protected final Object mutex = new Object();
+  protected final ReentrantLock mutex = new ReentrantLock();
   
   //存储两个计数器的数量
   protected Map<String, Long> counterValues;
@@ -105,12 +106,15 @@ public class Counters extends Configurable {
    * @return
    */
   public long getValue(String name) {
-    synchronized (mutex) {
+    mutex.lock();
+    try {
       Long value = counterValues.get(name);
       if (value == null) {
         return 0;
       }
       return value;
+    } finally {
+      mutex.unlock();
     }
   }
 
@@ -120,7 +124,8 @@ public class Counters extends Configurable {
    * @param value
    */
   public void setValue(String name, long value) {
-    synchronized (mutex) {
+    mutex.lock();
+    try {
       try {
         counterValues.put(name, value);
         if (statisticsDB != null) {
@@ -131,6 +136,8 @@ public class Counters extends Configurable {
       } catch (Exception e) {
         logger.error("Exception setting value", e);
       }
+    } finally {
+      mutex.unlock();
     }
   }
 
@@ -148,9 +155,12 @@ public class Counters extends Configurable {
    * @param addition
    */
   public void increment(String name, long addition) {
-    synchronized (mutex) {
+    mutex.lock();
+    try {
       long prevValue = getValue(name);
       setValue(name, prevValue + addition);
+    } finally {
+      mutex.unlock();
     }
   }
 
@@ -1,17 +1,31 @@
 package cn.edu.whu.lmars.toxicspider.frontier;
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 
 import cn.edu.whu.lmars.toxicspider.crawler.Configurable;
 import cn.edu.whu.lmars.toxicspider.crawler.CrawlConfig;
+import cn.edu.whu.lmars.toxicspider.url.URLFingerprint;
+import cn.edu.whu.lmars.toxicspider.util.BloomFilter;
 import cn.edu.whu.lmars.toxicspider.util.Util;
 
 /**
@@ -25,12 +39,31 @@ public class DocIDServer extends Configurable {
 
 	// 定义数据库docIDs
 	private final Database docIDsDB;
+	private final Environment env;
 	private static final String DATABASE_NAME = "DocIDs";
+	// 以URL指纹为key的数据库
+	private static final String FINGERPRINT_DATABASE_NAME = "DocIDFingerprints";
+	// 迁移旧数据库时每个事务写入的记录数
+	private static final int MIGRATION_BATCH_SIZE = 10000;
+
+	// 是否以URL指纹作为key
+	private final boolean fingerprintKeys;
 
-	// 对象锁
-	private final Object mutex = new Object();
+	// 对象锁，使用 ReentrantLock 以免在虚拟线程中进行数据库 I/O 时占住载体线程
+	private final ReentrantLock mutex = new ReentrantLock();
 	// 最后编号
 	private int lastDocID;
+	// 数据库中的记录数
+	private int docCount;
+	// 可恢复模式下保存最后编号和记录数，与docID在同一个事务中写入，启动时不需要遍历数据库。不可恢复时为 null
+	private final MetadataDB metadataDB;
+	private final String databaseName;
+
+	// 数据库前置的布隆过滤器，过滤器判断一定不存在的URL不再查询数据库。为 null 时不使用过滤器
+	private final BloomFilter seenFilter;
+	// 过滤器判断一定不存在的次数，以及判断可能存在但数据库中并不存在（误判）的次数
+	private long filterNegatives = 0;
+	private long filterFalsePositives = 0;
 
 	/**
 	 * 初始化数据库设置
@@ -40,6 +73,7 @@ public class DocIDServer extends Configurable {
 	 */
 	public DocIDServer(Environment env, CrawlConfig config) {
 		super(config);
+		this.env = env;
 		// 数据库环境设置。
 		DatabaseConfig dbConfig = new DatabaseConfig();
 		// 当设置为true时，没有数据库的环境，也可以打开。否则就不能打开
@@ -50,15 +84,116 @@ public class DocIDServer extends Configurable {
 		dbConfig.setDeferredWrite(!config.isResumableCrawling());
 
 		lastDocID = 0;
+		docCount = 0;
 		// 初始化数据库
-		docIDsDB = env.openDatabase(null, DATABASE_NAME, dbConfig);
+		fingerprintKeys = config.isFingerprintDocIdKeys();
+		databaseName = fingerprintKeys ? FINGERPRINT_DATABASE_NAME : DATABASE_NAME;
+		List<String> databaseNames = env.getDatabaseNames();
+		if (fingerprintKeys) {
+			docIDsDB = env.openDatabase(null, FINGERPRINT_DATABASE_NAME, dbConfig);
+			if (databaseNames.contains(DATABASE_NAME)) {
+				migrateFromUrlKeys(env, dbConfig);
+			}
+		} else {
+			if (databaseNames.contains(FINGERPRINT_DATABASE_NAME)) {
+				throw new IllegalStateException("The crawl folder stores DocIDs by URL fingerprint, "
+						+ "set fingerprintDocIdKeys to true to resume this crawl");
+			}
+			docIDsDB = env.openDatabase(null, DATABASE_NAME, dbConfig);
+		}
 		if (config.isResumableCrawling()) {
-			int docCount = getDocCount(); // 获取数据库中数据量
+			metadataDB = new MetadataDB(env);
+			long storedLastDocID = metadataDB.get("LastDocID-" + databaseName);
+			long storedDocCount = metadataDB.get("DocCount-" + databaseName);
+			if ((storedLastDocID < 0) || (storedDocCount < 0)) {
+				// 之前的版本没有保存，遍历一次数据库。docID按照自然数依次分配，所以记录数就是最后编号
+				storedDocCount = docIDsDB.count();
+				storedLastDocID = storedDocCount;
+				storeCounts(null, (int) storedLastDocID, (int) storedDocCount);
+			}
+			lastDocID = (int) storedLastDocID;
+			docCount = (int) storedDocCount;
 			if (docCount > 0) {
 				logger.info("Loaded {} URLs that had been detected in previous crawl.", docCount);
-				lastDocID = docCount; // 因为是按照自然数依次排序，所以最后一个value值就是总的记录数
 			}
+		} else {
+			metadataDB = null;
+		}
+
+		if (config.getSeenUrlFilterExpectedUrls() > 0) {
+			seenFilter = new BloomFilter(Math.max(config.getSeenUrlFilterExpectedUrls(), lastDocID),
+					config.getSeenUrlFilterFalsePositiveRate());
+			if (lastDocID > 0) {
+				rebuildSeenFilter();
+			}
+		} else {
+			seenFilter = null;
+		}
+	}
+
+	/**
+	 * 把以完整URL为key的旧数据库中的记录转换为以URL指纹为key，写入新数据库，然后删除旧数据库。
+	 * 迁移在一次顺序遍历中完成，每 MIGRATION_BATCH_SIZE 条记录提交一次事务。
+	 * 
+	 * @param env
+	 * @param dbConfig
+	 */
+	private void migrateFromUrlKeys(Environment env, DatabaseConfig dbConfig) {
+		long start = System.currentTimeMillis();
+		long migrated = 0;
+		Database urlKeyedDB = env.openDatabase(null, DATABASE_NAME, dbConfig);
+		try {
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry value = new DatabaseEntry();
+			Transaction txn = dbConfig.getTransactional() ? env.beginTransaction(null, null) : null;
+			try (Cursor cursor = urlKeyedDB.openCursor(null, null)) {
+				OperationStatus result = cursor.getFirst(key, value, LockMode.READ_UNCOMMITTED);
+				while (result == OperationStatus.SUCCESS) {
+					String url = new String(key.getData());
+					docIDsDB.put(txn, new DatabaseEntry(URLFingerprint.getKey(url)), value);
+					migrated++;
+					if ((txn != null) && (migrated % MIGRATION_BATCH_SIZE == 0)) {
+						txn.commit();
+						txn = env.beginTransaction(null, null);
+					}
+					result = cursor.getNext(key, value, LockMode.READ_UNCOMMITTED);
+				}
+			}
+			if (txn != null) {
+				txn.commit();
+			}
+		} finally {
+			urlKeyedDB.close();
 		}
+		env.removeDatabase(null, DATABASE_NAME);
+		logger.info("Migrated {} DocIDs to fingerprint keys in {} ms", migrated, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @param url
+	 * @return 此URL在数据库中的key：URL指纹，或者完整的URL
+	 */
+	private byte[] getKey(String url) {
+		return fingerprintKeys ? URLFingerprint.getKey(url) : url.getBytes();
+	}
+
+	/**
+	 * 遍历数据库中所有的URL，重建布隆过滤器。只读取key，不读取value。
+	 */
+	private void rebuildSeenFilter() {
+		long start = System.currentTimeMillis();
+		DatabaseEntry key = new DatabaseEntry();
+		DatabaseEntry value = new DatabaseEntry();
+		value.setPartial(0, 0, true);
+		try (Cursor cursor = docIDsDB.openCursor(null, null)) {
+			OperationStatus result = cursor.getFirst(key, value, LockMode.READ_UNCOMMITTED);
+			while (result == OperationStatus.SUCCESS) {
+				seenFilter.put(key.getData());
+				result = cursor.getNext(key, value, LockMode.READ_UNCOMMITTED);
+			}
+		}
+		logger.info("Rebuilt seen URL filter from {} URLs in {} ms ({} bytes)", seenFilter.getInsertions(),
+				System.currentTimeMillis() - start, seenFilter.getSizeInBytes());
 	}
 
 	/**
@@ -72,26 +207,14 @@ public class DocIDServer extends Configurable {
 	public int getDocId(String url) {
 
 		// 同步锁,防止多线程操作的时候出现脏读
-		synchronized (mutex) {
-			// 数据库操作的状态
-			OperationStatus result = null;
-			// database key and data items as a byte array.
-			DatabaseEntry value = new DatabaseEntry();
-			try {
-				DatabaseEntry key = new DatabaseEntry(url.getBytes());
-				result = docIDsDB.get(null, key, value, null);
-
-			} catch (Exception e) {
-				logger.error("Exception thrown while getting DocID", e);
-				return -1;
-			}
-
-			if ((result == OperationStatus.SUCCESS) && (value.getData().length > 0)) {
-				// 如果数据库中存在，则返回此URL的docID
-				return Util.byteArray2Int(value.getData());
-			}
-
+		mutex.lock();
+		try {
+			return lookup(getKey(url), null, true);
+		} catch (Exception e) {
+			logger.error("Exception thrown while getting DocID", e);
 			return -1;
+		} finally {
+			mutex.unlock();
 		}
 	}
 
@@ -104,24 +227,252 @@ public class DocIDServer extends Configurable {
 	 */
 	public int getNewDocID(String url) {
 
-		synchronized (mutex) {
-			try {
-				// DB中有，则返回，没有则新创建
-				int docID = getDocId(url);
-				if (docID > 0) {
-					return docID;
+		mutex.lock();
+		try {
+			// DB中有，则返回，没有则新创建
+			byte[] keyData = getKey(url);
+			int docID = lookup(keyData, null, false);
+			if (docID > 0) {
+				return docID;
+			}
+
+			int newDocID = lastDocID + 1;
+			storeCommitted(keyData, newDocID);
+			lastDocID = newDocID; // 写入成功后才更新最后编号
+			return lastDocID;
+		} catch (Exception e) {
+			logger.error("Exception thrown while getting new DocID", e);
+			return -1;
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	/**
+	 * 批量查询URL的docID，只获取一次锁，并按key的顺序访问数据库以提高局部性。
+	 * 
+	 * @param urls
+	 *            要查询的URL
+	 * @return 与 urls 一一对应的docID，不存在的URL为-1
+	 */
+	public int[] getDocIds(List<String> urls) {
+		int[] docIds = new int[urls.size()];
+		byte[][] keys = getKeys(urls);
+		Integer[] order = sortedOrder(keys);
+		mutex.lock();
+		try {
+			for (int i : order) {
+				try {
+					docIds[i] = lookup(keys[i], null, true);
+				} catch (DatabaseException e) {
+					logger.error("Exception thrown while getting DocID", e);
+					docIds[i] = -1;
+				}
+			}
+		} finally {
+			mutex.unlock();
+		}
+		return docIds;
+	}
+
+	/**
+	 * 批量获取URL的docID，不存在的URL分配新的docID。
+	 * 整个批次只获取一次锁，可恢复模式下在同一个事务中写入。新的docID按照 urls 中的顺序分配，
+	 * 数据库按key的顺序访问。批次中重复的URL只分配一次。
+	 * 
+	 * @param urls
+	 *            要获取docID的URL
+	 * @param assigned
+	 *            与 urls 等长的数组，返回时标示对应的URL是否由此次调用新分配了docID
+	 *            （为 false 表示此URL之前已经存在，可能是其他线程刚刚添加的）
+	 * @return 与 urls 一一对应的docID，出错时为-1
+	 */
+	public int[] getOrAssignDocIds(List<String> urls, boolean[] assigned) {
+		int[] docIds = new int[urls.size()];
+		boolean[] stored = new boolean[urls.size()];
+		byte[][] keys = getKeys(urls);
+		Integer[] order = sortedOrder(keys);
+		mutex.lock();
+		Transaction txn = null;
+		try {
+			txn = beginTransaction();
+			for (int i : order) {
+				docIds[i] = lookup(keys[i], txn, false);
+			}
+
+			Map<String, Integer> newDocIds = new HashMap<>();
+			for (int i = 0; i < docIds.length; i++) {
+				if (docIds[i] < 0) {
+					Integer docId = newDocIds.get(urls.get(i));
+					if (docId == null) {
+						docIds[i] = ++lastDocID;
+						assigned[i] = true;
+						newDocIds.put(urls.get(i), docIds[i]);
+					} else {
+						docIds[i] = docId;
+					}
+				}
+			}
+
+			for (int i : order) {
+				if (assigned[i]) {
+					store(keys[i], docIds[i], txn);
+					stored[i] = true;
+				}
+			}
+			if (!newDocIds.isEmpty()) {
+				storeCounts(txn, lastDocID, docCount);
+			}
+			if (txn != null) {
+				txn.commit();
+			}
+		} catch (DatabaseException e) {
+			logger.error("Exception thrown while assigning new DocIDs", e);
+			if (txn != null) {
+				txn.abort();
+				// 事务已经回滚，所有写入都无效，从数据库中重新读取记录数
+				Arrays.fill(stored, false);
+				if (metadataDB != null) {
+					docCount = (int) metadataDB.get("DocCount-" + databaseName);
+				}
+			}
+			// 非可恢复模式没有事务，已经写入的URL保留在数据库中并已计数，仍然视为由此次调用分配，以便调度。
+			// 只撤销没有写入的docID（包括批次中重复的URL）。最后编号不回退，跳过的编号不会再使用
+			Set<Integer> unstored = new HashSet<>();
+			for (int i = 0; i < docIds.length; i++) {
+				if (assigned[i] && !stored[i]) {
+					unstored.add(docIds[i]);
+				}
+			}
+			for (int i = 0; i < docIds.length; i++) {
+				if (unstored.contains(docIds[i])) {
+					docIds[i] = -1;
+					assigned[i] = false;
+				}
+			}
+		} finally {
+			mutex.unlock();
+		}
+		return docIds;
+	}
+
+	/**
+	 * 查询key对应的docID，布隆过滤器判断一定不存在时不查询数据库。需要持有锁。
+	 * 
+	 * @param countStats 是否计入过滤器的误判率统计。只统计外部的“是否见过”查询，
+	 *            分配docID之前的内部查询不计入
+	 * @return docID，不存在则返回-1
+	 */
+	private int lookup(byte[] keyData, Transaction txn, boolean countStats) {
+		if (seenFilter != null) {
+			if (!seenFilter.mightContain(keyData)) {
+				if (countStats) {
+					filterNegatives++;
 				}
+				return -1; // 过滤器判断一定不存在，无需查询数据库
+			}
+		}
+		// database key and data items as a byte array.
+		DatabaseEntry value = new DatabaseEntry();
+		OperationStatus result = docIDsDB.get(txn, new DatabaseEntry(keyData), value, null);
+		if ((result == OperationStatus.SUCCESS) && (value.getData().length > 0)) {
+			// 如果数据库中存在，则返回此URL的docID
+			return Util.byteArray2Int(value.getData());
+		}
 
-				++lastDocID;
-				docIDsDB.put(null, new DatabaseEntry(url.getBytes()), new DatabaseEntry(Util.int2ByteArray(lastDocID)));
-				return lastDocID;
-			} catch (Exception e) {
-				logger.error("Exception thrown while getting new DocID", e);
-				return -1;
+		if ((seenFilter != null) && countStats) {
+			filterFalsePositives++;
+		}
+		return -1;
+	}
+
+	/**
+	 * 写入key和docID，并加入布隆过滤器。需要持有锁。
+	 */
+	private void store(byte[] keyData, int docId, Transaction txn) {
+		docIDsDB.put(txn, new DatabaseEntry(keyData), new DatabaseEntry(Util.int2ByteArray(docId)));
+		docCount++;
+		if (seenFilter != null) {
+			seenFilter.put(keyData);
+		}
+	}
+
+	/**
+	 * 在一个事务中写入key和docID，并保存以 docId 为最后编号的计数。需要持有锁。
+	 * 写入失败时回滚事务并恢复记录数，然后抛出异常。
+	 */
+	private void storeCommitted(byte[] keyData, int docId) {
+		int previousDocCount = docCount;
+		Transaction txn = beginTransaction();
+		boolean committed = false;
+		try {
+			store(keyData, docId, txn);
+			storeCounts(txn, docId, docCount);
+			if (txn != null) {
+				txn.commit();
+			}
+			committed = true;
+		} finally {
+			if (!committed) {
+				if (txn != null) {
+					txn.abort();
+				}
+				docCount = previousDocCount;
 			}
 		}
 	}
 
+	/**
+	 * 可恢复模式下，在事务 txn 中保存最后编号和记录数。需要持有锁。
+	 */
+	private void storeCounts(Transaction txn, int lastDocID, int docCount) {
+		if (metadataDB != null) {
+			metadataDB.set(txn, "LastDocID-" + databaseName, lastDocID);
+			metadataDB.set(txn, "DocCount-" + databaseName, docCount);
+		}
+	}
+
+	private byte[][] getKeys(List<String> urls) {
+		byte[][] keys = new byte[urls.size()][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = getKey(urls.get(i));
+		}
+		return keys;
+	}
+
+	/**
+	 * @return 按key（无符号字节序，与数据库的排序相同）排序后的下标
+	 */
+	private static Integer[] sortedOrder(final byte[][] keys) {
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				byte[] keyA = keys[a];
+				byte[] keyB = keys[b];
+				int length = Math.min(keyA.length, keyB.length);
+				for (int i = 0; i < length; i++) {
+					int diff = (keyA[i] & 0xff) - (keyB[i] & 0xff);
+					if (diff != 0) {
+						return diff;
+					}
+				}
+				return keyA.length - keyB.length;
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * 可恢复模式下开启事务，否则返回 null。
+	 */
+	private Transaction beginTransaction() {
+		return config.isResumableCrawling() ? env.beginTransaction(null, null) : null;
+	}
+
 	/**
 	 * 指定url和docID添加到数据库中
 	 * @param url
@@ -129,7 +480,8 @@ public class DocIDServer extends Configurable {
 	 * @throws Exception
 	 */
 	public void addUrlAndDocId(String url, int docId) throws Exception {
-		synchronized (mutex) {
+		mutex.lock();
+		try {
 			if (docId <= lastDocID) {
 				throw new Exception("Requested doc id: " + docId + " is not larger than: " + lastDocID);
 			}
@@ -144,8 +496,10 @@ public class DocIDServer extends Configurable {
 			}
 
 			// 添加新URL到DB中，并指定其docID
-			docIDsDB.put(null, new DatabaseEntry(url.getBytes()), new DatabaseEntry(Util.int2ByteArray(docId)));
+			storeCommitted(getKey(url), docId);
 			lastDocID = docId;
+		} finally {
+			mutex.unlock();
 		}
 	}
 
@@ -160,16 +514,46 @@ public class DocIDServer extends Configurable {
 	}
 
 	/**
-	 * 获取数据库中的记录数
+	 * 获取数据库中的记录数。记录数随每次写入维护，不遍历数据库
 	 * 
 	 * @return
 	 */
 	public final int getDocCount() {
+		mutex.lock();
 		try {
-			return (int) docIDsDB.count();
-		} catch (DatabaseException e) {
-			logger.error("Exception thrown while getting DOC Count", e);
-			return -1;
+			return docCount;
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	/**
+	 * 布隆过滤器实际观察到的误判率：在所有查询不存在的URL中，过滤器判断可能存在（仍然查询了数据库）的比例。
+	 * 只统计 getDocId、getDocIds、isSeenBefore 的查询。
+	 * 
+	 * @return 误判率，未使用过滤器或者还没有查询时返回0
+	 */
+	public double getSeenFilterFalsePositiveRate() {
+		mutex.lock();
+		try {
+			long unseenLookups = filterNegatives + filterFalsePositives;
+			return (unseenLookups == 0) ? 0 : (double) filterFalsePositives / unseenLookups;
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	/**
+	 * 根据过滤器中的URL数量估算的误判率。
+	 * 
+	 * @return 误判率，未使用过滤器时返回0
+	 */
+	public double getSeenFilterExpectedFalsePositiveRate() {
+		mutex.lock();
+		try {
+			return (seenFilter == null) ? 0 : seenFilter.getExpectedFalsePositiveRate();
+		} finally {
+			mutex.unlock();
 		}
 	}
 
@@ -177,8 +561,17 @@ public class DocIDServer extends Configurable {
 	 * 关闭数据库连接
 	 */
 	public void close() {
+		if (seenFilter != null) {
+			logger.info("Seen URL filter: {} of {} lookups of unseen URLs read the database, false positive rate {} "
+					+ "(expected {})", filterFalsePositives, filterNegatives + filterFalsePositives,
+					String.format("%.4f", getSeenFilterFalsePositiveRate()),
+					String.format("%.4f", getSeenFilterExpectedFalsePositiveRate()));
+		}
 		try {
 			docIDsDB.close();
+			if (metadataDB != null) {
+				metadataDB.close();
+			}
 		} catch (DatabaseException e) {
 			logger.error("Exception thrown while closing DocIDServer", e);
 		}
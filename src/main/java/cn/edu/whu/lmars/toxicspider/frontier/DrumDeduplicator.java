@@ -0,0 +1,576 @@
+package cn.edu.whu.lmars.toxicspider.frontier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sleepycat.bind.tuple.TupleOutput;
+
+import cn.edu.whu.lmars.toxicspider.crawler.Configurable;
+import cn.edu.whu.lmars.toxicspider.crawler.CrawlConfig;
+import cn.edu.whu.lmars.toxicspider.url.URLFingerprint;
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+import cn.edu.whu.lmars.toxicspider.util.IO;
+
+/**
+ * DRUM（Disk Repository with Update Management，IRLbot）方式的批量URL去重。
+ *
+ * 爬虫线程发现的子链接按URL指纹分散到若干个桶中，先缓存在内存，缓冲区满后追加写入磁盘上的待处理文件。
+ * 待处理的URL达到 drumMergeThreshold，或者距离上次合并超过 drumMaxMergeDelay 时，后台线程逐个桶地
+ * 把待处理的URL按指纹排序，与此桶已见过的指纹文件（有序）顺序归并：已经见过的URL被丢弃，
+ * 新的URL批量分配docID后加入 Frontier。
+ * 所有磁盘访问都是顺序读写，去重的吞吐量不会随着已见URL集合超过内存而下降。
+ *
+ * 子链接是否见过由指纹文件判断，爬虫线程不再查询 DocIDServer。只有归并后新的URL才通过 DocIDServer 分配docID，
+ * 已经有docID的不会调度，因此种子点和重定向等直接通过 DocIDServer 分配docID的URL也不会被重复调度。
+ *
+ * @author REN
+ */
+public class DrumDeduplicator extends Configurable {
+  private static final Logger logger = LoggerFactory.getLogger(DrumDeduplicator.class);
+
+  private static final String PENDING_SUFFIX = ".pending";
+  private static final String SEEN_SUFFIX = ".seen";
+
+  private final File folder;
+  private final DocIDServer docIdServer;
+  private final Frontier frontier;
+  private final WebURLTupleBinding webURLBinding;
+
+  private final int numBuckets;
+  private final int bucketBufferSize;
+
+  //保护内存缓冲区、待处理文件的代号和计数
+  private final ReentrantLock mutex = new ReentrantLock();
+  private final Condition mergeRequested = mutex.newCondition();
+  private final Condition mergeFinished = mutex.newCondition();
+
+  //每个桶的内存缓冲区
+  private final List<List<Record>> buffers;
+  //待处理文件的代号，合并时加一，合并处理所有代号小于新代号的文件
+  private int generation;
+  //尚未合并的URL数量，以及其中每个桶的数量
+  private long pendingCount = 0;
+  private final long[] bucketPendingCounts;
+  //正在合并的每个桶的URL数量，合并失败时加回待处理的数量
+  private final long[] bucketMergingCounts;
+  //正在合并中的URL数量
+  private long mergingCount = 0;
+  private long mergedGenerations = 0;
+  private boolean flushRequested = false;
+  private boolean shutdown = false;
+
+  private final Thread mergeThread;
+
+  /**
+   * 一条待去重的URL记录。
+   */
+  private static class Record {
+    final long fingerprint;
+    final byte[] data;
+
+    Record(long fingerprint, byte[] data) {
+      this.fingerprint = fingerprint;
+      this.data = data;
+    }
+  }
+
+  private static final Comparator<Record> FINGERPRINT_ORDER = new Comparator<Record>() {
+    @Override
+    public int compare(Record a, Record b) {
+      return Long.compare(a.fingerprint, b.fingerprint);
+    }
+  };
+
+  /**
+   * @param config 爬虫配置
+   * @param docIdServer 为新的URL分配docID
+   * @param frontier 新的URL加入的任务队列
+   * @throws IOException 创建存储目录失败
+   */
+  public DrumDeduplicator(CrawlConfig config, DocIDServer docIdServer, Frontier frontier) throws IOException {
+    super(config);
+    this.docIdServer = docIdServer;
+    this.frontier = frontier;
+    this.webURLBinding = new WebURLTupleBinding(config.isFrontierStoresParentUrl());
+    this.numBuckets = config.getDrumBuckets();
+    this.bucketBufferSize = config.getDrumBucketBufferSize();
+
+    folder = new File(config.getCrawlStorageFolder() + "/drum");
+    if (!folder.exists() && !folder.mkdirs()) {
+      throw new IOException("Failed creating the DRUM folder: " + folder.getAbsolutePath());
+    }
+    if (!config.isResumableCrawling()) {
+      IO.deleteFolderContents(folder);
+    }
+
+    bucketPendingCounts = new long[numBuckets];
+    bucketMergingCounts = new long[numBuckets];
+    buffers = new ArrayList<>(numBuckets);
+    for (int i = 0; i < numBuckets; i++) {
+      buffers.add(new ArrayList<Record>());
+    }
+
+    //上次运行遗留的待处理文件会在第一次合并时处理，其中的记录计入待处理的URL数量
+    generation = 0;
+    int leftoverFiles = 0;
+    File[] leftovers = folder.listFiles();
+    for (File file : (leftovers == null) ? new File[0] : leftovers) {
+      if (file.getName().endsWith(PENDING_SUFFIX)) {
+        generation = Math.max(generation, getGeneration(file) + 1);
+        if (getBucketOfFile(file) >= numBuckets) {
+          logger.warn("Ignoring DRUM file {} written with more buckets than drumBuckets", file.getAbsolutePath());
+          continue;
+        }
+        long count = countRecords(file);
+        bucketPendingCounts[getBucketOfFile(file)] += count;
+        pendingCount += count;
+        leftoverFiles++;
+      }
+    }
+    if (leftoverFiles > 0) {
+      logger.info("Found {} pending URLs in {} DRUM bucket files left by the previous crawl", pendingCount,
+                  leftoverFiles);
+    }
+
+    mergeThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        mergeLoop();
+      }
+    }, "DRUM Merger");
+    mergeThread.setDaemon(true);
+    mergeThread.start();
+  }
+
+  /**
+   * 提交一批需要去重的子链接（已经通过深度、shouldVisit 和 robots.txt 检查，可能已经见过）。
+   * 只写入内存缓冲区，缓冲区满时顺序追加到磁盘，不进行任何随机读。
+   *
+   * @param urls 待去重的URL
+   */
+  public void add(List<WebURL> urls) {
+    if (urls.isEmpty()) {
+      return;
+    }
+    List<Record> records = new ArrayList<>(urls.size());
+    for (WebURL url : urls) {
+      records.add(new Record(URLFingerprint.fingerprint(url.getURL()), serialize(url)));
+    }
+
+    mutex.lock();
+    try {
+      for (Record record : records) {
+        int bucket = getBucket(record.fingerprint);
+        List<Record> buffer = buffers.get(bucket);
+        buffer.add(record);
+        bucketPendingCounts[bucket]++;
+        if (buffer.size() >= bucketBufferSize) {
+          spill(bucket);
+        }
+      }
+      pendingCount += records.size();
+      if (pendingCount >= config.getDrumMergeThreshold()) {
+        mergeRequested.signal();
+      }
+    } catch (IOException e) {
+      logger.error("Error while spilling DRUM bucket", e);
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  /**
+   * 请求立即合并，并等待所有当前待处理的URL合并完成。
+   */
+  public void flush() {
+    mutex.lock();
+    try {
+      long target = mergedGenerations + ((pendingCount > 0) ? 1 : 0) + ((mergingCount > 0) ? 1 : 0);
+      flushRequested = true;
+      mergeRequested.signal();
+      while (!shutdown && (mergedGenerations < target)) {
+        mergeFinished.await();
+      }
+    } catch (InterruptedException ignored) {
+      // Do nothing
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  /**
+   * @return 尚未完成去重的URL数量（包括正在合并的URL）
+   */
+  public long getPendingCount() {
+    mutex.lock();
+    try {
+      return pendingCount + mergingCount;
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  /**
+   * 停止后台合并线程。内存中尚未写入磁盘的URL会写入待处理文件，可恢复模式下次启动时继续处理。
+   */
+  public void close() {
+    mutex.lock();
+    try {
+      shutdown = true;
+      for (int i = 0; i < numBuckets; i++) {
+        spill(i);
+      }
+      mergeRequested.signalAll();
+      mergeFinished.signalAll();
+    } catch (IOException e) {
+      logger.error("Error while spilling DRUM bucket", e);
+    } finally {
+      mutex.unlock();
+    }
+    try {
+      mergeThread.join();
+    } catch (InterruptedException ignored) {
+      // Do nothing
+    }
+  }
+
+  private void mergeLoop() {
+    while (true) {
+      int mergeGeneration;
+      mutex.lock();
+      try {
+        long deadline = System.currentTimeMillis() + config.getDrumMaxMergeDelay();
+        while (!shutdown && !flushRequested && (pendingCount < config.getDrumMergeThreshold())) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            if (pendingCount > 0) {
+              break;
+            }
+            deadline = System.currentTimeMillis() + config.getDrumMaxMergeDelay();
+            wait = config.getDrumMaxMergeDelay();
+          }
+          mergeRequested.await(wait, TimeUnit.MILLISECONDS);
+        }
+        flushRequested = false;
+        if (shutdown) {
+          return;
+        }
+        for (int i = 0; i < numBuckets; i++) {
+          spill(i);
+        }
+        mergeGeneration = generation++;
+        mergingCount = pendingCount;
+        pendingCount = 0;
+        System.arraycopy(bucketPendingCounts, 0, bucketMergingCounts, 0, numBuckets);
+        Arrays.fill(bucketPendingCounts, 0);
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        logger.error("Error while spilling DRUM bucket, retrying in " + config.getDrumMaxMergeDelay() + " ms", e);
+        if (!backOff()) {
+          return;
+        }
+        continue;
+      } finally {
+        mutex.unlock();
+      }
+
+      long start = System.currentTimeMillis();
+      long unique = 0;
+      boolean[] failed = new boolean[numBuckets];
+      for (int i = 0; i < numBuckets; i++) {
+        try {
+          unique += mergeBucket(i, mergeGeneration);
+        } catch (IOException e) {
+          logger.error("Error while merging DRUM bucket " + i + ", retrying in " + config.getDrumMaxMergeDelay() +
+                       " ms", e);
+          failed[i] = true;
+        }
+      }
+      logger.debug("DRUM merged {} URLs, {} were new, in {} ms", mergingCount, unique,
+                   System.currentTimeMillis() - start);
+
+      mutex.lock();
+      try {
+        //合并失败的桶的待处理文件仍然保留，其中的URL重新计入待处理的数量，下次合并时重试
+        boolean anyFailed = false;
+        for (int i = 0; i < numBuckets; i++) {
+          if (failed[i]) {
+            bucketPendingCounts[i] += bucketMergingCounts[i];
+            pendingCount += bucketMergingCounts[i];
+            anyFailed = true;
+          }
+        }
+        mergingCount = 0;
+        mergedGenerations++;
+        mergeFinished.signalAll();
+        if (anyFailed && !backOff()) {
+          return;
+        }
+      } finally {
+        mutex.unlock();
+      }
+    }
+  }
+
+  /**
+   * 出错后等待 drumMaxMergeDelay 再重试，期间不响应合并请求，避免磁盘已满等持续的错误占满CPU和日志。需要持有锁。
+   * @return 被中断时返回false
+   */
+  private boolean backOff() {
+    long deadline = System.currentTimeMillis() + config.getDrumMaxMergeDelay();
+    try {
+      long wait;
+      while (!shutdown && ((wait = deadline - System.currentTimeMillis()) > 0)) {
+        mergeRequested.await(wait, TimeUnit.MILLISECONDS);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      return false;
+    }
+  }
+
+  /**
+   * 把一个桶的内存缓冲区追加写入当前代号的待处理文件。需要持有锁。
+   */
+  private void spill(int bucket) throws IOException {
+    List<Record> buffer = buffers.get(bucket);
+    if (buffer.isEmpty()) {
+      return;
+    }
+    File file = new File(folder, bucket + "-" + generation + PENDING_SUFFIX);
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file, true)))) {
+      for (Record record : buffer) {
+        out.writeLong(record.fingerprint);
+        out.writeInt(record.data.length);
+        out.write(record.data);
+      }
+    }
+    buffer.clear();
+  }
+
+  /**
+   * 合并一个桶：读取此桶所有代号不大于 mergeGeneration 的待处理文件，按指纹排序去重后与已见指纹文件归并。
+   * 新的URL分配docID并加入 Frontier 之后，才替换已见指纹文件、删除待处理文件，
+   * 因此中途崩溃只会导致重新检查，不会丢失URL。
+   *
+   * @return 此桶中新的URL数量
+   */
+  private long mergeBucket(int bucket, int mergeGeneration) throws IOException {
+    List<File> pendingFiles = new ArrayList<>();
+    List<Record> records = new ArrayList<>();
+    File[] files = folder.listFiles();
+    for (File file : (files == null) ? new File[0] : files) {
+      String name = file.getName();
+      if (name.startsWith(bucket + "-") && name.endsWith(PENDING_SUFFIX) &&
+          (getGeneration(file) <= mergeGeneration)) {
+        pendingFiles.add(file);
+        readRecords(file, records);
+      }
+    }
+    if (records.isEmpty()) {
+      return 0;
+    }
+
+    //排序是稳定的，相同指纹保留最早发现的记录
+    Collections.sort(records, FINGERPRINT_ORDER);
+
+    File seenFile = new File(folder, bucket + SEEN_SUFFIX);
+    File newSeenFile = new File(folder, bucket + SEEN_SUFFIX + ".tmp");
+    List<WebURLRecord> unique = new ArrayList<>();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newSeenFile)));
+         SeenReader seen = new SeenReader(seenFile)) {
+      Record previous = null;
+      for (Record record : records) {
+        if ((previous != null) && (previous.fingerprint == record.fingerprint)) {
+          continue; //批次内重复
+        }
+        previous = record;
+        while (seen.hasNext() && (seen.peek() < record.fingerprint)) {
+          out.writeLong(seen.next());
+        }
+        if (seen.hasNext() && (seen.peek() == record.fingerprint)) {
+          seen.next();
+        } else {
+          unique.add(new WebURLRecord(record.data));
+        }
+        out.writeLong(record.fingerprint);
+      }
+      while (seen.hasNext()) {
+        out.writeLong(seen.next());
+      }
+    }
+
+    scheduleUnique(unique);
+
+    if (seenFile.exists() && !seenFile.delete()) {
+      throw new IOException("Failed deleting " + seenFile.getAbsolutePath());
+    }
+    if (!newSeenFile.renameTo(seenFile)) {
+      throw new IOException("Failed renaming " + newSeenFile.getAbsolutePath());
+    }
+    for (File file : pendingFiles) {
+      if (!file.delete()) {
+        logger.warn("Failed deleting DRUM file {}", file.getAbsolutePath());
+      }
+    }
+    return unique.size();
+  }
+
+  /**
+   * 为归并后新的URL批量分配docID，只调度由此次调用新分配docID的URL。
+   * 这些URL大多不在布隆过滤器中，分配时不需要读数据库。
+   * 分配docID只需要URL，只有需要调度的记录才解码为完整的 WebURL。
+   */
+  private void scheduleUnique(List<WebURLRecord> unique) {
+    if (unique.isEmpty()) {
+      return;
+    }
+    List<String> urls = new ArrayList<>(unique.size());
+    for (WebURLRecord record : unique) {
+      urls.add(record.getURL());
+    }
+    boolean[] assigned = new boolean[urls.size()];
+    int[] docIds = docIdServer.getOrAssignDocIds(urls, assigned);
+    List<WebURL> toSchedule = new ArrayList<>(unique.size());
+    for (int i = 0; i < docIds.length; i++) {
+      if (assigned[i]) {
+        WebURL webURL = unique.get(i).toWebURL();
+        webURL.setDocid(docIds[i]);
+        toSchedule.add(webURL);
+      }
+    }
+    frontier.scheduleAll(toSchedule);
+  }
+
+  /**
+   * 顺序读取有序的已见指纹文件。
+   */
+  private static class SeenReader implements AutoCloseable {
+    private final DataInputStream in;
+    private long current;
+    private boolean hasCurrent;
+
+    SeenReader(File file) throws IOException {
+      in = file.exists() ? new DataInputStream(new BufferedInputStream(new FileInputStream(file))) : null;
+      advance();
+    }
+
+    boolean hasNext() {
+      return hasCurrent;
+    }
+
+    long peek() {
+      return current;
+    }
+
+    long next() throws IOException {
+      long value = current;
+      advance();
+      return value;
+    }
+
+    private void advance() throws IOException {
+      hasCurrent = false;
+      if (in == null) {
+        return;
+      }
+      try {
+        current = in.readLong();
+        hasCurrent = true;
+      } catch (EOFException e) {
+        // 文件结束
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+      }
+    }
+  }
+
+  private void readRecords(File file, List<Record> records) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        long fingerprint;
+        try {
+          fingerprint = in.readLong();
+        } catch (EOFException e) {
+          return;
+        }
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        records.add(new Record(fingerprint, data));
+      }
+    } catch (EOFException e) {
+      logger.warn("Truncated DRUM file {}, ignoring the last record", file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * 统计待处理文件中的记录数，记录内容读入同一个缓冲区，不解码
+   */
+  private long countRecords(File file) throws IOException {
+    long count = 0;
+    byte[] data = new byte[0];
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        try {
+          in.readLong();
+        } catch (EOFException e) {
+          return count;
+        }
+        int length = in.readInt();
+        if (data.length < length) {
+          data = new byte[length];
+        }
+        in.readFully(data, 0, length);
+        count++;
+      }
+    } catch (EOFException e) {
+      logger.warn("Truncated DRUM file {}, ignoring the last record", file.getAbsolutePath());
+    }
+    return count;
+  }
+
+  private int getBucket(long fingerprint) {
+    return (int) ((fingerprint >>> 1) % numBuckets);
+  }
+
+  private static int getBucketOfFile(File file) {
+    String name = file.getName();
+    return Integer.parseInt(name.substring(0, name.indexOf('-')));
+  }
+
+  private static int getGeneration(File file) {
+    String name = file.getName();
+    return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.length() - PENDING_SUFFIX.length()));
+  }
+
+  private byte[] serialize(WebURL url) {
+    TupleOutput output = new TupleOutput();
+    webURLBinding.objectToEntry(url, output);
+    return Arrays.copyOf(output.getBufferBytes(), output.getBufferLength());
+  }
+}
@@ -1,6 +1,20 @@
 package cn.edu.whu.lmars.toxicspider.frontier;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,18 +30,72 @@ public class Frontier extends Configurable {
   protected static final Logger logger = LoggerFactory.getLogger(Frontier.class);
   
   private static final String DATABASE_NAME = "PendingURLsDB";
-  //批量处理大小
-  private static final int IN_PROCESS_RESCHEDULE_BATCH_SIZE = 100;
+  //恢复上次未完成任务时每个事务转移的任务数
+  private static final int IN_PROCESS_RESCHEDULE_BATCH_SIZE = 10000;
+  //恢复进度的日志间隔（毫秒）
+  private static final long RESCHEDULE_PROGRESS_INTERVAL = 10000;
+  //组提交写入失败时的重试次数，以及重试和重新写入的间隔（毫秒）
+  private static final int SCHEDULE_RETRIES = 3;
+  private static final long SCHEDULE_RETRY_INTERVAL = 100;
+  private static final long UNWRITTEN_RETRY_INTERVAL = 1000;
   
-  protected WorkQueues workQueues;
+  protected FrontierStore workQueues;
 
-  protected InProcessPagesDB inProcessPages; //已经加入到爬虫任务中，但是还未处理完的URL。
+  protected FrontierStore inProcessPages; //已经加入到爬虫任务中，但是还未处理完的URL。
 
-  //同步锁
-  protected final Object mutex = new Object();
-  protected final Object waitingList = new Object();
+  //按主机哈希划分的内存缓冲区分片，每个分片内按主机划分子队列，只分配已经到了抓取时间的主机的URL
+  protected FrontierShard[] shards;
+  //所有分片中的任务总数
+  protected final AtomicInteger buffered = new AtomicInteger();
+  //每次向分片添加任务时加一，等待的线程据此判断检查之后是否有新任务
+  private final AtomicLong addVersion = new AtomicLong();
+  //从工作队列向分片补充任务的锁，同一时间只有一个线程补充，其他线程不等待
+  private final ReentrantLock refillLock = new ReentrantLock();
 
-  protected boolean isFinished = false;
+  //已分配给爬虫线程但还未确认处理完成（或者被收回）的任务数。任务在分片和线程之间转移时总是先增加一方再减少另一方，
+  //因此任务在转移途中不会被误判为空闲
+  private final AtomicLong inFlight = new AtomicLong();
+  //等待爬取进入空闲状态的锁和条件
+  private final ReentrantLock idleLock = new ReentrantLock();
+  private final Condition idleReached = idleLock.newCondition();
+
+  //已分配给爬虫线程但还未确认的任务：线程 ---> 租约。租约过期或者线程停止后，任务重新加入分片
+  private final ConcurrentMap<Thread, Lease> leases = new ConcurrentHashMap<>();
+  //检查过期租约的锁和下次检查时间
+  private final ReentrantLock leaseCheckLock = new ReentrantLock();
+  private volatile long nextLeaseCheck = 0;
+
+  /**
+   * 一个爬虫线程持有的租约
+   */
+  private static class Lease {
+    //尚未确认的任务，按对象标识删除，因为处理过程中URL和docID可能因为重定向而改变
+    final Set<WebURL> urls = Collections.newSetFromMap(new IdentityHashMap<WebURL, Boolean>());
+    volatile long expireTime;
+
+    Lease(List<WebURL> urls, long expireTime) {
+      this.urls.addAll(urls);
+      this.expireTime = expireTime;
+    }
+  }
+
+  //调度锁，保护组提交和调度数量。使用 ReentrantLock 而不是 synchronized，在虚拟线程中等待时不会占住载体线程
+  protected final ReentrantLock mutex = new ReentrantLock();
+
+  //写入工作队列的线程在此条件上等待其他线程完成组提交
+  protected final Condition commitFinished = mutex.newCondition();
+
+  protected volatile boolean isFinished = false;
+
+  //等待组提交的任务，由当前负责提交的线程在一个事务中统一写入
+  private final List<WebURL> pendingSchedule = new ArrayList<>();
+  //已加入 pendingSchedule 的批次数和已经提交的批次数
+  private long enqueuedBatches = 0;
+  private long committedBatches = 0;
+  //是否有线程正在提交
+  private boolean committing = false;
+  //写入失败后放回 pendingSchedule、等待重新写入的任务数
+  private volatile int unwritten = 0;
 
   //已经安排好未爬取的数量
   protected long scheduledPages;
@@ -38,27 +106,22 @@ public class Frontier extends Configurable {
   public Frontier(Environment env, CrawlConfig config) {
     super(config);
     this.counters = new Counters(env, config);
+    this.shards = new FrontierShard[config.getFrontierShards()];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new FrontierShard(config);
+    }
     try {
     	//创建工作队列数据库
-      workQueues = new WorkQueues(env, DATABASE_NAME, config.isResumableCrawling());
+      workQueues = openStore(env, DATABASE_NAME, config.isResumableCrawling());
+      if (!config.isResumableCrawling() && (config.getFrontierMemoryCapacity() > 0)) {
+        workQueues = new TieredWorkQueues(workQueues, config.getFrontierMemoryCapacity());
+      }
       if (config.isResumableCrawling()) {
     	  //初始化未处理任务数量
         scheduledPages = counters.getValue(Counters.ReservedCounterNames.SCHEDULED_PAGES);
         //初始化上次运行时候数据库
-        inProcessPages = new InProcessPagesDB(env);
-        long numPreviouslyInProcessPages = inProcessPages.getLength();
-        if (numPreviouslyInProcessPages > 0) {
-          logger.info("Rescheduling {} URLs from previous crawl.", numPreviouslyInProcessPages);
-          scheduledPages -= numPreviouslyInProcessPages;
-          
-          //把inProcessPages 数据库中数据全部加入到工作队列数据库中（PendingURLsDB)
-          List<WebURL> urls = inProcessPages.get(IN_PROCESS_RESCHEDULE_BATCH_SIZE);
-          while (!urls.isEmpty()) {
-            scheduleAll(urls);
-            inProcessPages.delete(urls.size());
-            urls = inProcessPages.get(IN_PROCESS_RESCHEDULE_BATCH_SIZE);
-          }
-        }
+        inProcessPages = openStore(env, InProcessPagesDB.DATABASE_NAME, true);
+        rescheduleInProcessPages();
       } else {
         inProcessPages = null;
         scheduledPages = 0;
@@ -70,35 +133,168 @@ public class Frontier extends Configurable {
   }
 
   /**
-   * 批量添加任务到工作队列数据库中
+   * 把上次运行时已分配但未处理完的任务全部放回工作队列。
+   * 按顺序一次遍历，每个事务转移 IN_PROCESS_RESCHEDULE_BATCH_SIZE 个任务，同一个环境中的数据库之间直接复制原始记录。
+   * 这些任务已经计入调度数量，因此不经过 scheduleAll，也不改变计数器。
+   */
+  private void rescheduleInProcessPages() {
+    long total = inProcessPages.getLength();
+    if (total <= 0) {
+      return;
+    }
+    logger.info("Rescheduling {} URLs from previous crawl.", total);
+    long start = System.currentTimeMillis();
+    long nextReport = start + RESCHEDULE_PROGRESS_INTERVAL;
+    long moved = 0;
+    int count;
+    while ((count = inProcessPages.moveTo(workQueues, IN_PROCESS_RESCHEDULE_BATCH_SIZE)) > 0) {
+      moved += count;
+      long now = System.currentTimeMillis();
+      if (now >= nextReport) {
+        logger.info("Rescheduled {} of {} URLs ({} ms)", moved, total, now - start);
+        nextReport = now + RESCHEDULE_PROGRESS_INTERVAL;
+      }
+    }
+    logger.info("Rescheduled {} URLs from previous crawl in {} ms", moved, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * 根据配置的 frontierStorage 打开任务存储。子类可以覆盖此方法使用其他的存储实现。
+   * @param env Berkeley DB 环境
+   * @param name 存储名称
+   * @param resumable 是否需要在重启后恢复
+   * @return 任务存储
+   */
+  protected FrontierStore openStore(Environment env, String name, boolean resumable) {
+    WebURLTupleBinding webURLBinding = new WebURLTupleBinding(config.isFrontierStoresParentUrl());
+    switch (config.getFrontierStorage()) {
+      case MAPPED_LOG:
+        File folder = new File(config.getCrawlStorageFolder() + "/frontier-log");
+        if (!resumable && folder.exists()) {
+          for (File file : folder.listFiles()) {
+            if (file.getName().startsWith(name + "-") && !file.delete()) {
+              logger.warn("Failed deleting {}", file.getAbsolutePath());
+            }
+          }
+        }
+        try {
+          return new MappedLogStore(folder, name, config.getFrontierLogSegmentSize(), webURLBinding);
+        } catch (IOException e) {
+          throw new IllegalStateException("Error while opening the frontier log " + name, e);
+        }
+      default:
+        if (InProcessPagesDB.DATABASE_NAME.equals(name)) {
+          return new InProcessPagesDB(env, webURLBinding);
+        }
+        return new WorkQueues(env, name, resumable, webURLBinding);
+    }
+  }
+
+  /**
+   * 批量添加任务到工作队列数据库中。
+   * 使用组提交：多个爬虫线程同时调度时，由其中一个线程把所有等待中的任务在一个事务中写入，
+   * 其余线程等待写入完成后返回，因此返回时任务已经持久化。写入期间不持有调度锁，其他线程可以继续加入下一次组提交；
+   * 写入与从工作队列取出任务由工作队列自己的锁串行执行。
    * @param urls 要添加的WebURL 集合
    */
   public void scheduleAll(List<WebURL> urls) {
     int maxPagesToFetch = config.getMaxPagesToFetch();
-    synchronized (mutex) {
-    	//此变量标示已经新加入到数据库中的数据数量
-      int newScheduledPage = 0;
-      for (WebURL url : urls) {
-    	  //如果需要调度的数量大于最大限制数，则结束
-        if ((maxPagesToFetch > 0) && ((scheduledPages + newScheduledPage) >= maxPagesToFetch)) {
-          break;
+    mutex.lock();
+    try {
+      //如果需要调度的数量大于最大限制数，则只调度允许的部分
+      int count = urls.size();
+      if (maxPagesToFetch > 0) {
+        count = (int) Math.min(count, Math.max(0, maxPagesToFetch - scheduledPages));
+      }
+      if (count == 0) {
+        return;
+      }
+      scheduledPages += count; //预先占用调度数量。写入失败的任务留在 pendingSchedule 中稍后重写，不归还
+      pendingSchedule.addAll(urls.subList(0, count));
+      long ticket = ++enqueuedBatches;
+
+      while (committedBatches < ticket) {
+        if (committing) {
+          commitFinished.awaitUninterruptibly();
+          continue;
         }
+        commitPendingSchedule();
+      }
+    } finally {
+      mutex.unlock();
+    }
+  }
 
+  /**
+   * 把所有等待组提交的任务在一个事务中写入工作队列。需要持有锁，写入期间释放锁。
+   * 写入失败时重试；仍然失败时任务放回 pendingSchedule，由之后的组提交或者 getNextURLs 重新写入。
+   * 这些任务已经分配了docID，丢弃后不会再被调度。
+   */
+  private void commitPendingSchedule() {
+    committing = true;
+    List<WebURL> batch = new ArrayList<>(pendingSchedule);
+    pendingSchedule.clear();
+    long lastTicket = enqueuedBatches;
+    boolean written = false;
+    mutex.unlock();
+    try {
+      written = putWithRetry(batch);
+    } finally {
+      mutex.lock();
+      committing = false;
+      committedBatches = lastTicket;
+      if (!written) {
+        pendingSchedule.addAll(0, batch);
+      }
+      unwritten = written ? 0 : pendingSchedule.size();
+      commitFinished.signalAll();
+    }
+    if (written) {
+      counters.increment(Counters.ReservedCounterNames.SCHEDULED_PAGES, batch.size());
+      //唤醒一个等待的线程，由它把新任务补充到分片中
+      addVersion.incrementAndGet();
+      signalWaiters(0, 1);
+    }
+  }
+
+  /**
+   * 写入工作队列，失败时最多重试 SCHEDULE_RETRIES 次
+   * @return 是否写入成功
+   */
+  private boolean putWithRetry(List<WebURL> batch) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        workQueues.putAll(batch);
+        return true;
+      } catch (DatabaseException e) {
+        if (attempt >= SCHEDULE_RETRIES) {
+          logger.error("Error while putting " + batch.size() + " urls in the work queue, they will be written later", e);
+          return false;
+        }
+        logger.warn("Error while putting the urls in the work queue (attempt {}), retrying: {}", attempt, e.getMessage());
         try {
-        	//添加到数据库中
-          workQueues.put(url);
-          newScheduledPage++;
-        } catch (DatabaseException e) {
-          logger.error("Error while putting the url in the work queue", e);
+          Thread.sleep(SCHEDULE_RETRY_INTERVAL * attempt);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return false;
         }
       }
-      if (newScheduledPage > 0) {
-        scheduledPages += newScheduledPage; //更新已经调度的链接数量
-        counters.increment(Counters.ReservedCounterNames.SCHEDULED_PAGES, newScheduledPage);
-      }
-      synchronized (waitingList) {
-        waitingList.notifyAll();
+    }
+  }
+
+  /**
+   * 重新写入之前写入失败的任务。已经有线程在提交时直接返回，失败的任务会随那次提交一起写入
+   */
+  private void retryUnwritten() {
+    if (!mutex.tryLock()) {
+      return;
+    }
+    try {
+      if (!committing && !pendingSchedule.isEmpty()) {
+        commitPendingSchedule();
       }
+    } finally {
+      mutex.unlock();
     }
   }
 
@@ -107,59 +303,281 @@ public class Frontier extends Configurable {
    * @param url
    */
   public void schedule(WebURL url) {
-    int maxPagesToFetch = config.getMaxPagesToFetch();
-    synchronized (mutex) {
-      try {
-        if (maxPagesToFetch < 0 || scheduledPages < maxPagesToFetch) {
-          workQueues.put(url);
-          scheduledPages++;
-          counters.increment(Counters.ReservedCounterNames.SCHEDULED_PAGES);
-        }
-      } catch (DatabaseException e) {
-        logger.error("Error while putting the url in the work queue", e);
-      }
-    }
+    scheduleAll(Collections.singletonList(url));
   }
 
   /**
    * 批量获取任务，并添加到InProcessPages中
+   * 只返回已经到了抓取时间的主机的URL，每个主机每次最多分配一个URL。
+   * 线程优先从自己的分片中获取任务，自己的分片没有到期的任务时从其他分片窃取。
+   * 如果有任务但是所有主机都还未到抓取时间，则等待到最早的主机到期。
    * @param max 批量获取的任务数
    * @param result 获取到的任务集合
    */
   public void getNextURLs(int max, List<WebURL> result) {
-    while (true) {
-      synchronized (mutex) {
-        if (isFinished) {
-          return;
+    getNextURLs(max, result, -1);
+  }
+
+  /**
+   * 批量获取任务，最多等待 timeout 毫秒，超时后 result 为空
+   * @param max 批量获取的任务数
+   * @param result 获取到的任务集合
+   * @param timeout 最长等待时间（毫秒），小于0时一直等待
+   */
+  public void getNextURLs(int max, List<WebURL> result, long timeout) {
+    final FrontierShard home = shards[getHomeShard()];
+    long deadline = (timeout < 0) ? -1 : System.currentTimeMillis() + timeout;
+    try {
+      while (!isFinished) {
+        final long version = addVersion.get();
+        if (unwritten > 0) {
+          retryUnwritten();
         }
-        try {
-          List<WebURL> curResults = workQueues.get(max); //批量获取任务
-          workQueues.delete(curResults.size()); //删除原任务队列中刚获取的任务
-          if (inProcessPages != null) {
-            for (WebURL curPage : curResults) {
-              inProcessPages.put(curPage); //添加批量获取的任务到正在执行的数据库中。
-            }
-          }
-          result.addAll(curResults);
-        } catch (DatabaseException e) {
-          logger.error("Error while getting next urls", e);
+        long now = System.currentTimeMillis();
+        reclaimExpiredLeases(now);
+        refillShards(false);
+        if (pollShards(home, max, now, result) > 0) {
+          grantLease(result, now);
+          return; //获取到任务，则返回
+        }
+        //缓冲区中没有到期的任务时，即使缓冲区超过一半也进行补充
+        if (refillShards(true) > 0) {
+          continue;
         }
 
-        if (result.size() > 0) {
-          return; //获取到任务，则返回
+        //未获取到任务，则在自己的分片上等待主机到期或者其他线程添加任务
+        long nextReadyTime = -1;
+        for (FrontierShard shard : shards) {
+          long readyTime = shard.getNextReadyTime();
+          if ((readyTime >= 0) && ((nextReadyTime < 0) || (readyTime < nextReadyTime))) {
+            nextReadyTime = readyTime;
+          }
+        }
+        //还有未确认的租约时，最晚等到下次检查租约，以便及时收回过期的任务
+        if (!leases.isEmpty() && ((nextReadyTime < 0) || (nextLeaseCheck < nextReadyTime))) {
+          nextReadyTime = Math.max(nextLeaseCheck, now + 1);
+        }
+        //有写入失败的任务时，定期醒来重新写入
+        if ((unwritten > 0) && ((nextReadyTime < 0) || (now + UNWRITTEN_RETRY_INTERVAL < nextReadyTime))) {
+          nextReadyTime = now + UNWRITTEN_RETRY_INTERVAL;
+        }
+        if (deadline >= 0) {
+          if (now >= deadline) {
+            return;
+          }
+          if ((nextReadyTime < 0) || (deadline < nextReadyTime)) {
+            nextReadyTime = deadline;
+          }
         }
+        signalIfIdle();
+        home.await((nextReadyTime >= 0) ? Math.max(1, nextReadyTime - now) : -1, new FrontierShard.WaitCheck() {
+          @Override
+          public boolean shouldWait() {
+            return !isFinished && (addVersion.get() == version);
+          }
+        });
       }
+    } catch (InterruptedException ignored) {
+      // Do nothing
+    }
+  }
 
-      try {
-        synchronized (waitingList) { //未获取到任务，则等待其他线程添加任务
-          waitingList.wait();
+  /**
+   * 先从自己的分片取任务，不够时依次尝试其他空闲的分片。
+   * @return 取出的任务数
+   */
+  private int pollShards(FrontierShard home, int max, long now, List<WebURL> result) {
+    int count = home.poll(max, now, result);
+    for (int i = 0; (i < shards.length) && (count < max); i++) {
+      if (shards[i] != home) {
+        count += shards[i].tryPoll(max - count, now, result);
+      }
+    }
+    inFlight.addAndGet(count);
+    buffered.addAndGet(-count);
+    return count;
+  }
+
+  /**
+   * 线程的主分片，由线程ID决定
+   */
+  protected int getHomeShard() {
+    return (int) (Thread.currentThread().getId() % shards.length);
+  }
+
+  /**
+   * 获取此URL所在的分片
+   */
+  protected int getShard(WebURL url) {
+    return (shards[0].getHostKey(url).hashCode() & Integer.MAX_VALUE) % shards.length;
+  }
+
+  /**
+   * 从工作队列数据库中批量读取任务到各分片中。
+   * 当缓冲区不足一半时进行补充（force 为 true 时只要缓冲区未满就补充），缓冲区大小不超过 frontierBufferSize。
+   * 同一时间只有一个线程补充，其他线程直接返回。
+   * 读入缓冲区的任务同时记录到 InProcessPages 中，因此意外停止后会在下次启动时重新调度。
+   * @param force 缓冲区超过一半时是否也补充
+   * @return 补充的任务数
+   */
+  protected int refillShards(boolean force) {
+    int bufferSize = config.getFrontierBufferSize();
+    int current = buffered.get();
+    if ((current >= bufferSize) || (!force && (current > bufferSize / 2))) {
+      return 0;
+    }
+    if (!refillLock.tryLock()) {
+      return 0;
+    }
+    try {
+      //一次遍历取出任务，并在同一个事务中转移到正在执行的数据库中
+      List<WebURL> urls = workQueues.take(bufferSize - buffered.get(), inProcessPages);
+      if (urls.isEmpty()) {
+        return 0;
+      }
+      addToShards(urls);
+      return urls.size();
+    } catch (DatabaseException | IllegalStateException e) { //IllegalStateException: FrontierStore 写入失败
+      logger.error("Error while getting next urls", e);
+      return 0;
+    } finally {
+      refillLock.unlock();
+    }
+  }
+
+  /**
+   * 把任务按主机分配到各分片中，并唤醒相应数量的等待线程
+   */
+  private void addToShards(List<WebURL> urls) {
+    List<List<WebURL>> perShard = new ArrayList<>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      perShard.add(new ArrayList<WebURL>());
+    }
+    for (WebURL url : urls) {
+      perShard.get(getShard(url)).add(url);
+    }
+    buffered.addAndGet(urls.size());
+    addVersion.incrementAndGet();
+    int unsignalled = 0;
+    for (int i = 0; i < shards.length; i++) {
+      List<WebURL> shardUrls = perShard.get(i);
+      if (!shardUrls.isEmpty()) {
+        unsignalled += shardUrls.size() - shards[i].add(shardUrls);
+      }
+    }
+    //分片上的等待线程不够时，唤醒其他分片上的线程来窃取
+    signalWaiters(0, unsignalled);
+  }
+
+  /**
+   * 记录当前线程取得的任务的租约
+   */
+  private void grantLease(List<WebURL> urls, long now) {
+    if (config.getFrontierLeaseTimeout() <= 0) {
+      return;
+    }
+    long expireTime = now + config.getFrontierLeaseTimeout();
+    Lease lease = leases.get(Thread.currentThread());
+    if (lease != null) {
+      //上一批中没有确认的任务（例如处理时出现异常）仍然留在租约中
+      synchronized (lease.urls) {
+        if (leases.get(Thread.currentThread()) == lease) {
+          lease.urls.addAll(urls);
+          lease.expireTime = expireTime;
+          return;
         }
-      } catch (InterruptedException ignored) {
-        // Do nothing
       }
-      if (isFinished) { //如果所有任务已经结束，则退出。
-        return;
+    }
+    leases.put(Thread.currentThread(), new Lease(urls, expireTime));
+  }
+
+  /**
+   * 延长当前线程的租约。爬虫线程每处理完一个任务调用一次，只要线程还在推进，租约就不会过期。
+   */
+  public void renewLease() {
+    renewLease(Thread.currentThread());
+  }
+
+  /**
+   * 延长指定线程的租约。其他线程窃取并处理了此线程的任务时，代替它延长租约。
+   * @param owner 取得任务的线程
+   */
+  public void renewLease(Thread owner) {
+    Lease lease = leases.get(owner);
+    if (lease != null) {
+      lease.expireTime = System.currentTimeMillis() + config.getFrontierLeaseTimeout();
+    }
+  }
+
+  /**
+   * 收回指定线程（例如已经停止的爬虫线程）持有的租约，其中未确认的任务立即重新加入分片
+   * @param thread
+   * @return 重新分配的任务数
+   */
+  public int releaseLease(Thread thread) {
+    Lease lease = leases.remove(thread);
+    if (lease == null) {
+      return 0;
+    }
+    List<WebURL> urls;
+    synchronized (lease.urls) {
+      urls = new ArrayList<>(lease.urls);
+      lease.urls.clear();
+    }
+    if (urls.isEmpty()) {
+      return 0;
+    }
+    //原线程可能仍在处理（例如卡住），重新分配的是副本
+    List<WebURL> copies = new ArrayList<>(urls.size());
+    for (WebURL url : urls) {
+      copies.add(copyOf(url));
+    }
+    addToShards(copies);
+    inFlight.addAndGet(-copies.size());
+    return copies.size();
+  }
+
+  /**
+   * 每秒最多检查一次过期的租约
+   */
+  private void reclaimExpiredLeases(long now) {
+    if ((now < nextLeaseCheck) || leases.isEmpty() || !leaseCheckLock.tryLock()) {
+      return;
+    }
+    try {
+      nextLeaseCheck = now + 1000;
+      for (Map.Entry<Thread, Lease> entry : leases.entrySet()) {
+        if (entry.getValue().expireTime <= now) {
+          int count = releaseLease(entry.getKey());
+          if (count > 0) {
+            logger.info("Lease of {} expired, rescheduled its {} unfinished URLs", entry.getKey().getName(), count);
+          }
+        }
       }
+    } finally {
+      leaseCheckLock.unlock();
+    }
+  }
+
+  private static WebURL copyOf(WebURL url) {
+    WebURL copy = new WebURL();
+    copy.setURL(url.getURL());
+    copy.setDocid(url.getDocid());
+    copy.setParentDocid(url.getParentDocid());
+    copy.setParentUrl(url.getParentUrl());
+    copy.setDepth(url.getDepth());
+    copy.setPriority(url.getPriority());
+    copy.setAnchor(url.getAnchor());
+    copy.setTag(url.getTag());
+    return copy;
+  }
+
+  /**
+   * 从 start 开始依次唤醒各分片上的等待线程，共最多 count 个
+   */
+  private void signalWaiters(int start, int count) {
+    for (int i = 0; (i < shards.length) && (count > 0); i++) {
+      count -= shards[(start + i) % shards.length].signal(count);
     }
   }
 
@@ -168,21 +586,131 @@ public class Frontier extends Configurable {
    * @param webURL
    */
   public void setProcessed(WebURL webURL) {
-	  //已处理任务计数器加1
-    counters.increment(Counters.ReservedCounterNames.PROCESSED_PAGES);
+    setProcessed(Collections.singletonList(webURL));
+  }
+
+  /**
+   * 批量设置任务为已经处理完成，整批只更新一次计数器，并在一个事务中从 InProcessPages 中删除
+   * @param webURLs
+   */
+  public void setProcessed(List<WebURL> webURLs) {
+    setProcessed(webURLs, Thread.currentThread());
+  }
+
+  /**
+   * 批量设置任务为已经处理完成，任务是 owner 线程取得的（例如被当前线程窃取后处理完成），从 owner 的租约中移除
+   * @param webURLs
+   * @param owner 取得这些任务的线程
+   */
+  public void setProcessed(List<WebURL> webURLs, Thread owner) {
+    //不使用租约时所有确认的任务都在处理中；使用租约时只确认仍在租约中的任务。
+    //已经被收回并重新分配的任务由新的线程确认，迟到的确认不能删除 InProcessPages 中重新分配的记录，也不能重复计数
+    List<WebURL> acknowledged = webURLs;
+    if (config.getFrontierLeaseTimeout() > 0) {
+      acknowledged = new ArrayList<>(webURLs.size());
+      Lease lease = leases.get(owner);
+      if (lease != null) {
+        synchronized (lease.urls) {
+          for (WebURL webURL : webURLs) {
+            if (lease.urls.remove(webURL)) {
+              acknowledged.add(webURL);
+            }
+          }
+          if (lease.urls.isEmpty()) {
+            leases.remove(owner, lease);
+          }
+        }
+      }
+      if (acknowledged.size() < webURLs.size()) {
+        logger.debug("Ignoring late acknowledgement of {} reassigned URLs", webURLs.size() - acknowledged.size());
+      }
+    }
+    if (acknowledged.isEmpty()) {
+      return;
+    }
+	  //已处理任务计数器增加
+    counters.increment(Counters.ReservedCounterNames.PROCESSED_PAGES, acknowledged.size());
     if (inProcessPages != null) {
-      if (!inProcessPages.removeURL(webURL)) { //从数据库中移除这个已经处理过的任务
-        logger.warn("Could not remove: {} from list of processed pages.", webURL.getURL());
+      int removed = inProcessPages.removeAll(acknowledged); //从数据库中移除这些已经处理过的任务
+      if (removed < acknowledged.size()) {
+        logger.debug("Could not remove {} of {} URLs from list of processed pages.", acknowledged.size() - removed,
+                    acknowledged.size());
       }
     }
+    //处理页面时发现的新任务已经在确认之前加入队列
+    if (inFlight.addAndGet(-acknowledged.size()) == 0) {
+      signalIfIdle();
+    }
   }
 
   /**
-   * 获取工作队列中任务数量
+   * 爬取是否空闲：没有已分配未确认的任务，缓冲区和工作队列都为空。
+   * 爬虫线程总是先调度处理页面时发现的新任务，再确认处理完成，因此空闲之后只有外部添加任务才会改变这一状态。
+   */
+  public boolean isIdle() {
+    if ((inFlight.get() > 0) || (buffered.get() > 0) || (unwritten > 0)) {
+      return false;
+    }
+    if (!refillLock.tryLock()) {
+      return false; //正在从工作队列向分片转移任务
+    }
+    try {
+      return (inFlight.get() == 0) && (buffered.get() == 0) && (workQueues.getLength() == 0);
+    } finally {
+      refillLock.unlock();
+    }
+  }
+
+  private void signalIfIdle() {
+    if (isIdle()) {
+      wakeUpIdleWaiters();
+    }
+  }
+
+  /**
+   * 唤醒所有在 awaitIdle 中等待的线程，例如爬取被要求停止时
+   */
+  public void wakeUpIdleWaiters() {
+    idleLock.lock();
+    try {
+      idleReached.signalAll();
+    } finally {
+      idleLock.unlock();
+    }
+  }
+
+  /**
+   * 等待爬取进入空闲状态，或者被 wakeUpIdleWaiters 唤醒，最长等待 timeout 毫秒
+   * @return 返回时是否空闲
+   */
+  public boolean awaitIdle(long timeout) throws InterruptedException {
+    idleLock.lock();
+    try {
+      if (!isIdle()) {
+        idleReached.await(timeout, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      idleLock.unlock();
+    }
+    return isIdle();
+  }
+
+  /**
+   * 使用按主机调整的抓取间隔和并发名额（例如 PolitenessServer）决定各主机何时可以再次分配任务。
+   * 需要在爬虫线程开始获取任务之前设置。
+   */
+  public void setHostPolicy(HostPolicy hostPolicy) {
+    for (FrontierShard shard : shards) {
+      shard.setHostPolicy(hostPolicy);
+    }
+  }
+
+  /**
+   * 获取工作队列中任务数量，包括已经读入主机子队列但还未分配的任务
    * @return
    */
   public long getQueueLength() {
-    return workQueues.getLength();
+    return workQueues.getLength() + buffered.get();
   }
 
   /**
@@ -209,6 +737,21 @@ public class Frontier extends Configurable {
    * 关闭数据库连接
    */
   public void close() {
+    mutex.lock();
+    try {
+      if (!pendingSchedule.isEmpty()) {
+        //最后一次尝试写入之前写入失败的任务
+        try {
+          workQueues.putAll(pendingSchedule);
+          counters.increment(Counters.ReservedCounterNames.SCHEDULED_PAGES, pendingSchedule.size());
+        } catch (DatabaseException e) {
+          logger.error("Lost " + pendingSchedule.size() + " scheduled urls that could not be written", e);
+        }
+        pendingSchedule.clear();
+      }
+    } finally {
+      mutex.unlock();
+    }
     workQueues.close();
     counters.close();
     if (inProcessPages != null) {
@@ -221,8 +764,8 @@ public class Frontier extends Configurable {
    */
   public void finish() {
     isFinished = true;
-    synchronized (waitingList) {
-      waitingList.notifyAll();
+    for (FrontierShard shard : shards) {
+      shard.signalAll();
     }
   }
 }
\ No newline at end of file
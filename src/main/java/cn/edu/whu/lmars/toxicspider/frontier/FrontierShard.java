@@ -0,0 +1,189 @@
+package cn.edu.whu.lmars.toxicspider.frontier;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cn.edu.whu.lmars.toxicspider.crawler.CrawlConfig;
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+
+/**
+ * Frontier 内存缓冲区的一个分片。
+ * 同一个主机（或者域名）的URL总是在同一个分片中，分片内部用 HostQueues 控制抓取间隔；
+ * 每个分片有自己的锁和等待条件，不同分片的分配互不阻塞，添加任务时只唤醒需要的等待线程。
+ *
+ * @author REN
+ */
+class FrontierShard {
+
+  final ReentrantLock lock = new ReentrantLock();
+  private final HostQueues hostQueues;
+
+  //在此分片上等待的线程，需要持有锁。每个等待线程有自己的条件，唤醒时按先后顺序逐个唤醒
+  private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+  private static class Waiter {
+    final Condition condition;
+    boolean signalled = false;
+
+    Waiter(Condition condition) {
+      this.condition = condition;
+    }
+  }
+
+  FrontierShard(CrawlConfig config) {
+    this.hostQueues = new HostQueues(config);
+  }
+
+  String getHostKey(WebURL url) {
+    return hostQueues.getHostKey(url);
+  }
+
+  void setHostPolicy(HostPolicy hostPolicy) {
+    lock.lock();
+    try {
+      hostQueues.setHostPolicy(hostPolicy);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 添加任务，并按添加的数量唤醒在此分片上等待的线程。
+   * @return 唤醒的线程数
+   */
+  int add(List<WebURL> urls) {
+    lock.lock();
+    try {
+      for (WebURL url : urls) {
+        hostQueues.add(url);
+      }
+      return signal(urls.size());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 唤醒最多 count 个在此分片上等待的线程
+   * @return 唤醒的线程数
+   */
+  int signal(int count) {
+    lock.lock();
+    try {
+      int signalled = 0;
+      while ((signalled < count) && !waiters.isEmpty()) {
+        Waiter waiter = waiters.poll();
+        waiter.signalled = true;
+        waiter.condition.signal();
+        signalled++;
+      }
+      return signalled;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void signalAll() {
+    signal(Integer.MAX_VALUE);
+  }
+
+  /**
+   * 从已经到期的主机中取出最多 max 个任务
+   * @return 取出的任务数
+   */
+  int poll(int max, long now, List<WebURL> result) {
+    lock.lock();
+    try {
+      return hostQueues.poll(max, now, result);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 分片空闲时取出任务，正被其他线程使用时直接返回，用于从其他分片窃取任务
+   * @return 取出的任务数
+   */
+  int tryPoll(int max, long now, List<WebURL> result) {
+    if (!lock.tryLock()) {
+      return 0;
+    }
+    try {
+      return hostQueues.poll(max, now, result);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 在此分片上等待新任务，直到被唤醒或者超时。check 在持有锁、登记为等待线程之后执行，
+   * 返回 false（期间已经有新任务）时不等待，因此不会错过唤醒。
+   *
+   * @param timeout 最长等待时间（毫秒），小于0时一直等待
+   */
+  void await(long timeout, WaitCheck check) throws InterruptedException {
+    lock.lock();
+    try {
+      if (!check.shouldWait()) {
+        return;
+      }
+      Waiter waiter = new Waiter(lock.newCondition());
+      waiters.add(waiter);
+      try {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!waiter.signalled) {
+          if (timeout < 0) {
+            waiter.condition.await();
+          } else {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+              break;
+            }
+            waiter.condition.await(remaining, TimeUnit.MILLISECONDS);
+          }
+        }
+      } finally {
+        if (!waiter.signalled) {
+          waiters.remove(waiter);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return 最早到期主机的 readyTime，如果分片为空则返回 -1
+   */
+  long getNextReadyTime() {
+    lock.lock();
+    try {
+      return hostQueues.getNextReadyTime();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return hostQueues.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 等待前的检查
+   */
+  interface WaitCheck {
+    /**
+     * @return 是否仍然需要等待
+     */
+    boolean shouldWait();
+  }
+}
@@ -0,0 +1,81 @@
+package cn.edu.whu.lmars.toxicspider.frontier;
+
+import java.util.List;
+
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+
+/**
+ * Frontier 的任务存储接口。
+ * 任务按 priority、depth、docID 的顺序排列（与 WorkQueues 数据库key的顺序相同），越小越先被取出。
+ * 同一个docID的任务只保存一份。实现类需要是线程安全的。
+ *
+ * @author REN
+ */
+public interface FrontierStore {
+
+  /**
+   * 存储一个任务
+   * @param url
+   */
+  void put(WebURL url);
+
+  /**
+   * 批量存储任务，实现类应尽量把一批任务作为一次写入
+   * @param urls
+   */
+  void putAll(List<WebURL> urls);
+
+  /**
+   * 读取排在最前面的任务，不删除
+   * @param max 最大记录数
+   * @return 小于等于最大记录数的WebURL对象集合
+   */
+  List<WebURL> get(int max);
+
+  /**
+   * 取出并删除排在最前面的任务，同时写入 target
+   * @param max 最大记录数
+   * @param target 接收取出任务的存储，为null时只取出不转移
+   * @return 小于等于最大记录数的WebURL对象集合
+   */
+  List<WebURL> take(int max, FrontierStore target);
+
+  /**
+   * 取出并删除排在最前面的任务，写入 target，但不返回任务对象，用于大批量转移。
+   * 实现类可以直接复制序列化后的记录而不解码。
+   * @param target 接收取出任务的存储
+   * @param max 最大记录数
+   * @return 转移的任务数
+   */
+  int moveTo(FrontierStore target, int max);
+
+  /**
+   * 删除排在最前面的 count 个任务
+   * @param count
+   */
+  void delete(int count);
+
+  /**
+   * 删除指定的任务
+   * @param url
+   * @return 任务存在并被删除时返回 true
+   */
+  boolean remove(WebURL url);
+
+  /**
+   * 批量删除指定的任务，实现类应尽量把一批删除作为一次写入
+   * @param urls
+   * @return 实际删除的任务数
+   */
+  int removeAll(List<WebURL> urls);
+
+  /**
+   * @return 任务数量
+   */
+  long getLength();
+
+  /**
+   * 关闭存储
+   */
+  void close();
+}
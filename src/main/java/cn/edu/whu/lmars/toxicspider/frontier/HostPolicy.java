@@ -0,0 +1,23 @@
+package cn.edu.whu.lmars.toxicspider.frontier;
+
+/**
+ * 每个主机（或域名）当前的抓取间隔和空闲的并发名额。
+ * 默认所有主机使用 politenessDelay 并且不限制并发；开启 autoThrottle 或者设置了每个主机的请求数上限时由 PolitenessServer 提供，
+ * HostQueues 据此推后主机的 readyTime，线程不会被分配到还需要长时间等待或者并发已满的主机。
+ *
+ * @author REN
+ */
+public interface HostPolicy {
+
+  /**
+   * @param hostKey 主机名，或者按域名控制抓取间隔时的注册域名
+   * @return 此主机两次抓取之间的间隔（毫秒）
+   */
+  long getDelay(String hostKey);
+
+  /**
+   * @param hostKey 主机名，或者按域名控制抓取间隔时的注册域名
+   * @return 此主机还可以同时发出的请求数，不限制时返回 Integer.MAX_VALUE
+   */
+  int getFreeSlots(String hostKey);
+}
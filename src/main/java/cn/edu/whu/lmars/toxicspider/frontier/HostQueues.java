@@ -0,0 +1,240 @@
+package cn.edu.whu.lmars.toxicspider.frontier;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import cn.edu.whu.lmars.toxicspider.crawler.Configurable;
+import cn.edu.whu.lmars.toxicspider.crawler.CrawlConfig;
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+
+/**
+ * 按主机划分的内存任务队列（Mercator 方式）。
+ * 每个主机维护一个子队列，子队列内部保持与 WorkQueues 相同的 priority/depth/docid 顺序；
+ * 所有非空主机按照“下一次可以抓取的时间”放在一个最小堆中，
+ * 只有到期的主机才会被分配任务，线程因此不必在抓取间隔上空等。
+ *
+ * 此类不是线程安全的，由所属 FrontierShard 的锁保护。
+ *
+ * @author REN
+ */
+public class HostQueues extends Configurable {
+
+  /**
+   * 与 WorkQueues.getDatabaseEntryKey 相同的排序：priority、depth（最大 127）、docid 依次升序。
+   * 数据库按无符号字节比较key，priority 也按无符号比较，负的 priority 排在最后。
+   */
+  static final Comparator<WebURL> URL_ORDER = new Comparator<WebURL>() {
+    @Override
+    public int compare(WebURL a, WebURL b) {
+      int priorityA = a.getPriority() & 0xff;
+      int priorityB = b.getPriority() & 0xff;
+      if (priorityA != priorityB) {
+        return (priorityA < priorityB) ? -1 : 1;
+      }
+      int depthA = Math.min(a.getDepth(), Byte.MAX_VALUE);
+      int depthB = Math.min(b.getDepth(), Byte.MAX_VALUE);
+      if (depthA != depthB) {
+        return (depthA < depthB) ? -1 : 1;
+      }
+      if (a.getDocid() != b.getDocid()) {
+        return (a.getDocid() < b.getDocid()) ? -1 : 1;
+      }
+      return 0;
+    }
+  };
+
+  private static final Comparator<HostQueue> READY_ORDER = new Comparator<HostQueue>() {
+    @Override
+    public int compare(HostQueue a, HostQueue b) {
+      if (a.readyTime != b.readyTime) {
+        return (a.readyTime < b.readyTime) ? -1 : 1;
+      }
+      return 0;
+    }
+  };
+
+  /**
+   * 单个主机的子队列。
+   */
+  static class HostQueue {
+    final String host;
+    final PriorityQueue<WebURL> urls = new PriorityQueue<>(16, URL_ORDER);
+    long readyTime; //此主机下一次可以被分配任务的时间
+
+    //在第几次 poll 中取出了多少个任务，同一次 poll 中取出的任务数不超过此主机空闲的并发名额
+    long pollNumber = -1;
+    int polled = 0;
+
+    HostQueue(String host, long readyTime) {
+      this.host = host;
+      this.readyTime = readyTime;
+    }
+  }
+
+  //主机 ---> 子队列，只包含非空的子队列
+  private final Map<String, HostQueue> queues = new HashMap<>();
+
+  //按 readyTime 排序的非空子队列
+  private final PriorityQueue<HostQueue> readyHeap = new PriorityQueue<>(64, READY_ORDER);
+
+  //子队列取空后被删除的主机 ---> 下一次可以被分配任务的时间，只保留还没有到期的主机
+  private final Map<String, Long> drainedReadyTimes = new HashMap<>();
+
+  //drainedReadyTimes 超过此大小时清理已经到期的主机
+  private int drainedPruneSize = 1024;
+
+  //并发名额已满的主机，至少隔这么久（毫秒）再检查一次
+  private static final long SLOT_RECHECK_INTERVAL = 100;
+
+  private int size = 0;
+
+  private long pollNumber = 0;
+
+  //每个主机的抓取间隔和并发名额，默认都是 politenessDelay，不限制并发
+  private HostPolicy hostPolicy;
+
+  public HostQueues(CrawlConfig config) {
+    super(config);
+    final long politenessDelay = config.getPolitenessDelay();
+    this.hostPolicy = new HostPolicy() {
+      @Override
+      public long getDelay(String hostKey) {
+        return politenessDelay;
+      }
+
+      @Override
+      public int getFreeSlots(String hostKey) {
+        return Integer.MAX_VALUE;
+      }
+    };
+  }
+
+  /**
+   * 设置按主机调整的抓取间隔和并发名额，需要在开始分配任务之前设置
+   */
+  public void setHostPolicy(HostPolicy hostPolicy) {
+    this.hostPolicy = hostPolicy;
+  }
+
+  /**
+   * 获取此URL所属子队列的键：主机名，或者在按域名控制抓取间隔时使用注册域名。
+   */
+  protected String getHostKey(WebURL url) {
+    String key = config.isPolitenessPerDomain() ? url.getDomain() : url.getHost();
+    return (key == null) ? "" : key;
+  }
+
+  /**
+   * 添加一个URL到所属主机的子队列中。新出现的主机立即可以被分配任务；
+   * 子队列取空后又有新任务的主机，仍然要等到上次分配任务后的抓取间隔到期。
+   */
+  public void add(WebURL url) {
+    String key = getHostKey(url);
+    HostQueue queue = queues.get(key);
+    if (queue == null) {
+      long now = System.currentTimeMillis();
+      Long drainedReadyTime = drainedReadyTimes.remove(key);
+      queue = new HostQueue(key, (drainedReadyTime == null) ? now : Math.max(now, drainedReadyTime));
+      queues.put(key, queue);
+      readyHeap.add(queue);
+    }
+    queue.urls.add(url);
+    size++;
+  }
+
+  /**
+   * 从已经到期的主机中取出最多 max 个任务。
+   * 每个主机每次只取出一个URL，之后此主机的 readyTime 推后此主机的抓取间隔（默认 politenessDelay）。
+   * 开启 hostAffinityBatching 时每个主机取出一组连续的URL（最多 hostAffinityWindow / 抓取间隔 个），
+   * readyTime 推后这一组URL依次抓取所需的时间，在此期间此主机不会分配给其他线程。
+   * 同时进行的请求数已经达到上限的主机暂不分配，稍后再检查。
+   *
+   * @param max 最多取出的任务数
+   * @param now 当前时间
+   * @param result 取出的任务集合
+   * @return 取出的任务数
+   */
+  public int poll(int max, long now, List<WebURL> result) {
+    int count = 0;
+    pollNumber++;
+    while ((count < max) && !readyHeap.isEmpty() && (readyHeap.peek().readyTime <= now)) {
+      HostQueue queue = readyHeap.poll();
+      long delay = hostPolicy.getDelay(queue.host);
+      if (queue.pollNumber != pollNumber) {
+        queue.pollNumber = pollNumber;
+        queue.polled = 0;
+      }
+      long freeSlots = (long) hostPolicy.getFreeSlots(queue.host) - queue.polled;
+      if (freeSlots <= 0) {
+        queue.readyTime = now + Math.max(delay, SLOT_RECHECK_INTERVAL);
+        readyHeap.add(queue);
+        continue;
+      }
+      long perHost = 1;
+      if (config.isHostAffinityBatching()) {
+        perHost = (delay > 0) ? Math.max(1, config.getHostAffinityWindow() / delay) : Integer.MAX_VALUE;
+      }
+      int taken = 0;
+      while ((taken < perHost) && (count < max) && !queue.urls.isEmpty()) {
+        result.add(queue.urls.poll());
+        size--;
+        count++;
+        taken++;
+      }
+      //按主机分组时一组URL由一个线程依次抓取，只占用一个并发名额
+      queue.polled += config.isHostAffinityBatching() ? 1 : taken;
+      queue.readyTime = now + taken * delay;
+      if (queue.urls.isEmpty()) {
+        queues.remove(queue.host);
+        if (queue.readyTime > now) {
+          drainedReadyTimes.put(queue.host, queue.readyTime);
+        }
+      } else {
+        readyHeap.add(queue);
+      }
+    }
+    if (drainedReadyTimes.size() > drainedPruneSize) {
+      pruneDrainedReadyTimes(now);
+    }
+    return count;
+  }
+
+  /**
+   * 删除已经到期的取空主机，剩余的主机较多时提高下一次清理的阈值，避免每次 poll 都遍历
+   */
+  private void pruneDrainedReadyTimes(long now) {
+    Iterator<Long> iterator = drainedReadyTimes.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next() <= now) {
+        iterator.remove();
+      }
+    }
+    drainedPruneSize = Math.max(1024, drainedReadyTimes.size() * 2);
+  }
+
+  /**
+   * @return 最早到期主机的 readyTime，如果队列为空则返回 -1
+   */
+  public long getNextReadyTime() {
+    HostQueue queue = readyHeap.peek();
+    return (queue == null) ? -1 : queue.readyTime;
+  }
+
+  /**
+   * @return 所有子队列中的任务总数
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return 当前有任务的主机数
+   */
+  public int getNumberOfHosts() {
+    return queues.size();
+  }
+}
@@ -0,0 +1,578 @@
+package cn.edu.whu.lmars.toxicspider.frontier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+
+/**
+ * 基于内存映射的追加日志文件的 FrontierStore 实现。
+ *
+ * 任务以记录的形式追加写入固定大小的段文件（name-N.log），删除时追加一条删除记录；
+ * 内存中的有序索引保存每个任务的排序key和记录位置，读取时直接从映射的段文件中解码。
+ * 最早的段文件中所有任务都被删除后，文件直接删除；已删除记录占比过高时，把存活的任务复制到新的段文件中进行压缩。
+ * 打开时按顺序重放所有段文件重建索引。
+ *
+ * 写入只到操作系统的页缓存，进程崩溃不会丢失数据，关闭时刷新到磁盘；操作系统崩溃可能丢失最近的写入。
+ * 每条记录带有 CRC32 校验和，重放时遇到第一条不完整或者校验失败的记录（例如崩溃时写了一半），
+ * 此段文件的重放到此为止，之后的写入从这个位置开始覆盖。
+ *
+ * 记录格式：int 记录长度，byte 类型，long 排序key，之后是 WebURLTupleBinding 序列化的任务（只有存储记录有），
+ * 最后是 int 校验和（覆盖类型、key 和任务）。早期没有校验和的记录（类型 1、2）仍然可以读取。
+ *
+ * @author REN
+ */
+public class MappedLogStore implements FrontierStore {
+  private static final Logger logger = LoggerFactory.getLogger(MappedLogStore.class);
+
+  //没有校验和的旧记录类型
+  private static final byte LEGACY_PUT = 1;
+  private static final byte LEGACY_DELETE = 2;
+  private static final byte PUT = 3;
+  private static final byte DELETE = 4;
+  private static final int HEADER_SIZE = 4 + 1 + 8;
+  private static final int CHECKSUM_SIZE = 4;
+  private static final String SUFFIX = ".log";
+
+  //段文件数量超过此值，且存活数据不足一半时进行压缩
+  private static final int COMPACTION_MIN_SEGMENTS = 4;
+
+  private final File folder;
+  private final String name;
+  private final int segmentSize;
+  private final WebURLTupleBinding webURLBinding;
+
+  private final ReentrantLock mutex = new ReentrantLock();
+  //串行执行取出操作，写入 target 期间不持有 mutex
+  private final ReentrantLock takeLock = new ReentrantLock();
+
+  //排序key -> 记录位置（段号 << 32 | 段内偏移）
+  private final TreeMap<Long, Long> index = new TreeMap<>();
+  private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+  private Segment active;
+
+  /**
+   * 一个段文件
+   */
+  private static class Segment {
+    final int id;
+    final File file;
+    final MappedByteBuffer buffer;
+    //段中存活的任务数量和字节数
+    int liveRecords = 0;
+    long liveBytes = 0;
+
+    Segment(int id, File file, MappedByteBuffer buffer) {
+      this.id = id;
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * @param folder 段文件所在的目录
+   * @param name 存储名称，作为段文件名的前缀
+   * @param segmentSize 段文件大小（字节）
+   * @throws IOException 打开或者重放段文件失败
+   */
+  public MappedLogStore(File folder, String name, int segmentSize) throws IOException {
+    this(folder, name, segmentSize, new WebURLTupleBinding());
+  }
+
+  /**
+   * @param folder 段文件所在的目录
+   * @param name 存储名称，作为段文件名的前缀
+   * @param segmentSize 段文件大小（字节）
+   * @param webURLBinding 任务的序列化方式
+   * @throws IOException 打开或者重放段文件失败
+   */
+  public MappedLogStore(File folder, String name, int segmentSize, WebURLTupleBinding webURLBinding)
+      throws IOException {
+    this.folder = folder;
+    this.webURLBinding = webURLBinding;
+    this.name = name;
+    this.segmentSize = segmentSize;
+    if (!folder.exists() && !folder.mkdirs()) {
+      throw new IOException("Failed creating the folder: " + folder.getAbsolutePath());
+    }
+    recover();
+  }
+
+  /**
+   * 按段号顺序重放所有段文件，重建索引。
+   */
+  private void recover() throws IOException {
+    List<Integer> ids = new ArrayList<>();
+    File[] files = folder.listFiles();
+    for (File file : (files == null) ? new File[0] : files) {
+      String fileName = file.getName();
+      if (fileName.startsWith(name + "-") && fileName.endsWith(SUFFIX)) {
+        ids.add(Integer.parseInt(fileName.substring(name.length() + 1, fileName.length() - SUFFIX.length())));
+      }
+    }
+    Collections.sort(ids);
+
+    for (int id : ids) {
+      File file = getSegmentFile(id);
+      Segment segment = new Segment(id, file, map(file, file.length()));
+      segments.put(id, segment);
+      ByteBuffer buffer = segment.buffer;
+      int position = 0;
+      while (position + HEADER_SIZE <= buffer.limit()) {
+        int length = buffer.getInt(position);
+        if ((length < HEADER_SIZE) || (position + length > buffer.limit())) {
+          break; //段文件中已写入数据的结尾
+        }
+        byte type = buffer.get(position + 4);
+        if (!isValid(buffer, position, length, type)) {
+          logger.warn("Ignoring a torn or corrupt record at offset {} of {} and everything after it", position,
+                      file.getAbsolutePath());
+          break;
+        }
+        long key = buffer.getLong(position + 5);
+        if ((type == PUT) || (type == LEGACY_PUT)) {
+          Long previous = index.put(key, getLocation(id, position));
+          if (previous != null) {
+            release(previous);
+          }
+          segment.liveRecords++;
+          segment.liveBytes += length;
+        } else {
+          Long previous = index.remove(key);
+          if (previous != null) {
+            release(previous);
+          }
+        }
+        position += length;
+      }
+      buffer.position(position);
+    }
+
+    if (!segments.isEmpty()) {
+      active = segments.lastEntry().getValue();
+    }
+    deleteEmptySegments();
+    if (!index.isEmpty()) {
+      logger.info("Recovered {} URLs from {} segment files of {}", index.size(), segments.size(), name);
+    }
+  }
+
+  @Override
+  public void put(WebURL url) {
+    putAll(Collections.singletonList(url));
+  }
+
+  @Override
+  public void putAll(List<WebURL> urls) {
+    mutex.lock();
+    try {
+      for (WebURL url : urls) {
+        byte[] data = serialize(url);
+        long key = getKey(url);
+        Long previous = index.put(key, append(PUT, key, data));
+        if (previous != null) {
+          release(previous);
+        }
+      }
+      maybeCompact();
+    } catch (IOException e) {
+      throw new IllegalStateException("Error while writing to " + name, e);
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public List<WebURL> get(int max) {
+    mutex.lock();
+    try {
+      List<WebURL> results = new ArrayList<>(Math.min(max, index.size()));
+      for (Long location : index.values()) {
+        if (results.size() >= max) {
+          break;
+        }
+        results.add(read(location));
+      }
+      return results;
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public int moveTo(FrontierStore target, int max) {
+    return take(max, target).size();
+  }
+
+  /**
+   * 先把任务写入 target，再追加删除记录。两步之间崩溃时任务在两个存储中各有一份（重复抓取），但不会丢失。
+   * 写入 target 时不持有本存储的锁，取出操作由 takeLock 串行执行，同一个任务不会被两次取出。
+   * 追加删除记录失败时，已经写入 target 的任务仍然返回，没有删除的任务留在本存储中，之后会被再次取出。
+   */
+  @Override
+  public List<WebURL> take(int max, FrontierStore target) {
+    takeLock.lock();
+    try {
+      List<WebURL> results;
+      List<Long> taken;
+      mutex.lock();
+      try {
+        results = new ArrayList<>(Math.min(max, index.size()));
+        taken = new ArrayList<>(Math.min(max, index.size()));
+        Iterator<Map.Entry<Long, Long>> iterator = index.entrySet().iterator();
+        while ((results.size() < max) && iterator.hasNext()) {
+          Map.Entry<Long, Long> entry = iterator.next();
+          taken.add(entry.getKey());
+          results.add(read(entry.getValue()));
+        }
+      } finally {
+        mutex.unlock();
+      }
+      if (results.isEmpty()) {
+        return results;
+      }
+
+      if (target != null) {
+        target.putAll(results);
+      }
+
+      mutex.lock();
+      try {
+        for (Long key : taken) {
+          //期间已经被删除时不再追加删除记录。记录位置可能因为压缩而改变，按key删除当前的记录
+          if (!index.containsKey(key)) {
+            continue;
+          }
+          append(DELETE, key, null);
+          release(index.remove(key));
+        }
+        deleteEmptySegments();
+        maybeCompact();
+      } catch (IOException e) {
+        logger.error("Error while writing to " + name + ", the remaining taken URLs will be taken again", e);
+      } finally {
+        mutex.unlock();
+      }
+      return results;
+    } finally {
+      takeLock.unlock();
+    }
+  }
+
+  @Override
+  public void delete(int count) {
+    take(count, null);
+  }
+
+  @Override
+  public boolean remove(WebURL url) {
+    mutex.lock();
+    try {
+      long key = getKey(url);
+      Long location = index.remove(key);
+      if (location == null) {
+        return false;
+      }
+      append(DELETE, key, null);
+      release(location);
+      deleteEmptySegments();
+      maybeCompact();
+      return true;
+    } catch (IOException e) {
+      throw new IllegalStateException("Error while writing to " + name, e);
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public int removeAll(List<WebURL> urls) {
+    mutex.lock();
+    try {
+      int removed = 0;
+      for (WebURL url : urls) {
+        long key = getKey(url);
+        Long location = index.remove(key);
+        if (location != null) {
+          append(DELETE, key, null);
+          release(location);
+          removed++;
+        }
+      }
+      deleteEmptySegments();
+      maybeCompact();
+      return removed;
+    } catch (IOException e) {
+      throw new IllegalStateException("Error while writing to " + name, e);
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public long getLength() {
+    mutex.lock();
+    try {
+      return index.size();
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  /**
+   * @return 段文件数量
+   */
+  public int getNumberOfSegments() {
+    mutex.lock();
+    try {
+      return segments.size();
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    mutex.lock();
+    try {
+      for (Segment segment : segments.values()) {
+        segment.buffer.force();
+      }
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  /**
+   * 检查重放时读到的记录：已知的类型，长度与类型相符，带校验和的记录校验和正确
+   */
+  private static boolean isValid(ByteBuffer buffer, int position, int length, byte type) {
+    if ((type == LEGACY_PUT) || (type == LEGACY_DELETE)) {
+      return (type == LEGACY_PUT) || (length == HEADER_SIZE);
+    }
+    if ((type != PUT) && (type != DELETE)) {
+      return false;
+    }
+    if ((length < HEADER_SIZE + CHECKSUM_SIZE) || ((type == DELETE) && (length != HEADER_SIZE + CHECKSUM_SIZE))) {
+      return false;
+    }
+    int end = position + length - CHECKSUM_SIZE;
+    return checksum(buffer, position + 4, end) == buffer.getInt(end);
+  }
+
+  /**
+   * 计算 buffer 中 [from, to) 的 CRC32
+   */
+  private static int checksum(ByteBuffer buffer, int from, int to) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(to);
+    slice.position(from);
+    CRC32 crc = new CRC32();
+    byte[] chunk = new byte[Math.min(4096, to - from)];
+    while (slice.hasRemaining()) {
+      int n = Math.min(chunk.length, slice.remaining());
+      slice.get(chunk, 0, n);
+      crc.update(chunk, 0, n);
+    }
+    return (int) crc.getValue();
+  }
+
+  /**
+   * 追加一条记录，当前段文件空间不足时创建新的段文件。
+   * @return 记录位置
+   */
+  private long append(byte type, long key, byte[] data) throws IOException {
+    int length = HEADER_SIZE + ((data == null) ? 0 : data.length) + CHECKSUM_SIZE;
+    if ((active == null) || (active.buffer.remaining() < length)) {
+      int id = segments.isEmpty() ? 0 : (segments.lastKey() + 1);
+      File file = getSegmentFile(id);
+      active = new Segment(id, file, map(file, Math.max(segmentSize, length)));
+      segments.put(id, active);
+    }
+    ByteBuffer buffer = active.buffer;
+    int position = buffer.position();
+    buffer.putInt(length);
+    buffer.put(type);
+    buffer.putLong(key);
+    if (data != null) {
+      buffer.put(data);
+      active.liveRecords++;
+      active.liveBytes += length;
+    }
+    buffer.putInt(checksum(buffer, position + 4, buffer.position()));
+    return getLocation(active.id, position);
+  }
+
+  private WebURL read(long location) {
+    Segment segment = segments.get((int) (location >>> 32));
+    int position = (int) location;
+    ByteBuffer buffer = segment.buffer.duplicate();
+    byte[] data = new byte[getDataLength(buffer, position)];
+    buffer.position(position + HEADER_SIZE);
+    buffer.get(data);
+    return webURLBinding.entryToObject(new TupleInput(data));
+  }
+
+  /**
+   * @return position 处存储记录中任务的字节数
+   */
+  private static int getDataLength(ByteBuffer buffer, int position) {
+    int length = buffer.getInt(position) - HEADER_SIZE;
+    return (buffer.get(position + 4) == LEGACY_PUT) ? length : (length - CHECKSUM_SIZE);
+  }
+
+  /**
+   * 一条存储记录被覆盖或删除
+   */
+  private void release(long location) {
+    Segment segment = segments.get((int) (location >>> 32));
+    segment.liveRecords--;
+    segment.liveBytes -= segment.buffer.getInt((int) location);
+  }
+
+  /**
+   * 删除最早的没有存活任务的段文件。只从最早的段开始删除，
+   * 因为段中的删除记录可能对应更早段中的存储记录，先删除较新的段会导致重放时已删除的任务复活。
+   */
+  private void deleteEmptySegments() {
+    while (!segments.isEmpty()) {
+      Segment oldest = segments.firstEntry().getValue();
+      if ((oldest == active) || (oldest.liveRecords > 0)) {
+        return;
+      }
+      segments.remove(oldest.id);
+      unmap(oldest.buffer);
+      if (!oldest.file.delete()) {
+        logger.warn("Failed deleting segment file {}", oldest.file.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * 段文件较多且存活数据不足一半时，把所有存活的任务按顺序复制到新的段文件中，然后删除旧的段文件。
+   * 复制过程中崩溃时，旧段文件仍然存在，重放时新段中的重复记录覆盖旧记录，结果不变。
+   */
+  private void maybeCompact() throws IOException {
+    if (segments.size() <= COMPACTION_MIN_SEGMENTS) {
+      return;
+    }
+    long liveBytes = 0;
+    for (Segment segment : segments.values()) {
+      liveBytes += segment.liveBytes;
+    }
+    if (liveBytes * 2 > (long) segments.size() * segmentSize) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
+    List<Segment> oldSegments = new ArrayList<>(segments.values());
+    active = null;
+    for (Map.Entry<Long, Long> entry : index.entrySet()) {
+      long oldLocation = entry.getValue();
+      Segment oldSegment = segments.get((int) (oldLocation >>> 32));
+      ByteBuffer buffer = oldSegment.buffer.duplicate();
+      int position = (int) oldLocation;
+      byte[] data = new byte[getDataLength(buffer, position)];
+      buffer.position(position + HEADER_SIZE);
+      buffer.get(data);
+      //新的段号接在旧段之后，重放时覆盖旧记录
+      entry.setValue(append(PUT, entry.getKey(), data));
+    }
+    for (Segment segment : oldSegments) {
+      segments.remove(segment.id);
+    }
+    //新段文件写入磁盘之后才删除旧段文件
+    for (Segment segment : segments.values()) {
+      segment.buffer.force();
+    }
+    for (Segment segment : oldSegments) {
+      unmap(segment.buffer);
+      if (!segment.file.delete()) {
+        logger.warn("Failed deleting segment file {}", segment.file.getAbsolutePath());
+      }
+    }
+    logger.debug("Compacted {} segment files of {} into {} in {} ms", oldSegments.size(), name, segments.size(),
+                 System.currentTimeMillis() - start);
+  }
+
+  /**
+   * 释放已经删除的段文件的映射。映射的内存在垃圾回收之前不会释放，文件句柄和地址空间会一直占用，
+   * 因此通过 JDK 内部的 cleaner 立即释放（Java 8 及之前为 DirectBuffer.cleaner()，之后为 Unsafe.invokeCleaner）。
+   * 调用后不能再访问此缓冲区。无法释放时等待垃圾回收。
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      return;
+    } catch (Exception ignored) {
+      // Java 8 及之前没有 invokeCleaner
+    }
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception e) {
+      logger.debug("Could not unmap a deleted segment, leaving it to the garbage collector", e);
+    }
+  }
+
+  private File getSegmentFile(int id) {
+    return new File(folder, name + "-" + id + SUFFIX);
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if (raf.length() < size) {
+        raf.setLength(size);
+      }
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private static long getLocation(int segmentId, int position) {
+    return ((long) segmentId << 32) | (position & 0xffffffffL);
+  }
+
+  /**
+   * 排序key与 WorkQueues 数据库key的顺序相同：priority、depth（最大为127）、docid。
+   * 数据库按无符号字节比较，因此 priority 按无符号字节放入，负的 priority 排在最后。
+   */
+  private static long getKey(WebURL url) {
+    long depth = (url.getDepth() > Byte.MAX_VALUE) ? Byte.MAX_VALUE : url.getDepth();
+    return ((url.getPriority() & 0xffL) << 40) | ((depth & 0xff) << 32) | (url.getDocid() & 0xffffffffL);
+  }
+
+  private byte[] serialize(WebURL url) {
+    TupleOutput output = new TupleOutput();
+    webURLBinding.objectToEntry(url, output);
+    return Arrays.copyOf(output.getBufferBytes(), output.getBufferLength());
+  }
+}
@@ -0,0 +1,71 @@
+package cn.edu.whu.lmars.toxicspider.frontier;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+
+import cn.edu.whu.lmars.toxicspider.util.Util;
+
+/**
+ * 保存其他数据库元数据（记录数、最大docID等）的数据库，每个值是一个以名称为key的long。
+ * 只用于可恢复的爬取。调用者在修改数据的同一个事务中更新元数据，因此意外停止后元数据仍然与数据一致，
+ * 启动和监控时不需要用 Database.count() 遍历整个数据库。
+ *
+ * @author REN
+ */
+class MetadataDB {
+
+  static final String DATABASE_NAME = "Metadata";
+
+  private final Database metadataDB;
+
+  MetadataDB(Environment env) {
+    DatabaseConfig dbConfig = new DatabaseConfig();
+    dbConfig.setAllowCreate(true);
+    dbConfig.setTransactional(true);
+    metadataDB = env.openDatabase(null, DATABASE_NAME, dbConfig);
+  }
+
+  /**
+   * @param name
+   * @return 保存的值，不存在时返回 -1
+   */
+  long get(String name) {
+    DatabaseEntry value = new DatabaseEntry();
+    OperationStatus result = metadataDB.get(null, new DatabaseEntry(name.getBytes()), value, null);
+    if ((result == OperationStatus.SUCCESS) && (value.getSize() == 8)) {
+      return Util.byteArray2Long(value.getData());
+    }
+    return -1;
+  }
+
+  /**
+   * 在事务 txn 中设置值
+   */
+  void set(Transaction txn, String name, long value) {
+    metadataDB.put(txn, new DatabaseEntry(name.getBytes()), new DatabaseEntry(Util.long2ByteArray(value)));
+  }
+
+  /**
+   * 在事务 txn 中把值增加 delta。读取时加写锁，并发的事务依次修改，不会丢失更新。
+   * @return 增加后的值
+   */
+  long add(Transaction txn, String name, long delta) {
+    DatabaseEntry key = new DatabaseEntry(name.getBytes());
+    DatabaseEntry value = new DatabaseEntry();
+    long current = 0;
+    if ((metadataDB.get(txn, key, value, LockMode.RMW) == OperationStatus.SUCCESS) && (value.getSize() == 8)) {
+      current = Util.byteArray2Long(value.getData());
+    }
+    metadataDB.put(txn, key, new DatabaseEntry(Util.long2ByteArray(current + delta)));
+    return current + delta;
+  }
+
+  void close() {
+    metadataDB.close();
+  }
+}
@@ -0,0 +1,192 @@
+package cn.edu.whu.lmars.toxicspider.frontier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+
+/**
+ * 分层的工作队列，用于不可恢复的爬取。
+ * 最先被爬取的最多 capacity 个任务保存在内存中，只有超出部分才写入后端存储，内存中的任务取完后再从后端批量读回。
+ * 任务量能放进内存时，调度和分配都不会访问后端存储。
+ *
+ * 内存中的任务始终排在后端存储中的任务之前（与数据库key的顺序相同：priority、depth、docid），
+ * 因此整体的爬取顺序与 WorkQueues 相同。
+ *
+ * @author REN
+ */
+public class TieredWorkQueues implements FrontierStore {
+
+  private final FrontierStore backing;
+  private final int capacity;
+
+  private final ReentrantLock mutex = new ReentrantLock();
+
+  //内存中的任务，按爬取顺序排列
+  private final TreeSet<WebURL> head = new TreeSet<>(HostQueues.URL_ORDER);
+
+  //后端存储中的任务数量
+  private long spilled = 0;
+
+  /**
+   * @param backing 保存超出部分的后端存储
+   * @param capacity 内存中最多保存的任务数量
+   */
+  public TieredWorkQueues(FrontierStore backing, int capacity) {
+    this.backing = backing;
+    this.capacity = capacity;
+    spilled = backing.getLength();
+  }
+
+  @Override
+  public List<WebURL> take(int max, FrontierStore target) {
+    mutex.lock();
+    try {
+      List<WebURL> results = new ArrayList<>(max);
+      while (results.size() < max) {
+        if (head.isEmpty()) {
+          if (spilled == 0) {
+            break;
+          }
+          //内存中的任务取完了，从后端存储批量读回排在最前面的任务
+          List<WebURL> refill = backing.take(capacity, null);
+          spilled = refill.isEmpty() ? 0 : (spilled - refill.size());
+          head.addAll(refill);
+          if (head.isEmpty()) {
+            break;
+          }
+        }
+        results.add(head.pollFirst());
+      }
+      if ((target != null) && !results.isEmpty()) {
+        target.putAll(results);
+      }
+      return results;
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public int moveTo(FrontierStore target, int max) {
+    return take(max, target).size();
+  }
+
+  @Override
+  public List<WebURL> get(int max) {
+    mutex.lock();
+    try {
+      List<WebURL> results = new ArrayList<>(max);
+      for (WebURL url : head) {
+        if (results.size() >= max) {
+          break;
+        }
+        results.add(url);
+      }
+      if (results.size() < max) {
+        results.addAll(backing.get(max - results.size()));
+      }
+      return results;
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public void delete(int count) {
+    take(count, null);
+  }
+
+  @Override
+  public void put(WebURL url) {
+    putAll(Collections.singletonList(url));
+  }
+
+  /**
+   * 把任务加入内存。内存已满时，排在最后的任务写入后端存储；
+   * 后端存储不为空时，排在内存中所有任务之后的新任务直接写入后端存储，保证内存中的任务总是最先被爬取。
+   */
+  @Override
+  public void putAll(List<WebURL> urls) {
+    mutex.lock();
+    try {
+      List<WebURL> overflow = new ArrayList<>();
+      for (WebURL url : urls) {
+        if ((spilled + overflow.size() > 0) &&
+            (head.isEmpty() || (HostQueues.URL_ORDER.compare(url, head.last()) > 0))) {
+          overflow.add(url);
+          continue;
+        }
+        head.add(url);
+        if (head.size() > capacity) {
+          overflow.add(head.pollLast());
+        }
+      }
+      if (!overflow.isEmpty()) {
+        backing.putAll(overflow);
+        spilled += overflow.size();
+      }
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(WebURL url) {
+    mutex.lock();
+    try {
+      if (head.remove(url)) {
+        return true;
+      }
+      if (backing.remove(url)) {
+        spilled--;
+        return true;
+      }
+      return false;
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public int removeAll(List<WebURL> urls) {
+    mutex.lock();
+    try {
+      int removed = 0;
+      List<WebURL> notInHead = new ArrayList<>();
+      for (WebURL url : urls) {
+        if (head.remove(url)) {
+          removed++;
+        } else {
+          notInHead.add(url);
+        }
+      }
+      if (!notInHead.isEmpty() && (spilled > 0)) {
+        int removedFromBacking = backing.removeAll(notInHead);
+        spilled -= removedFromBacking;
+        removed += removedFromBacking;
+      }
+      return removed;
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public long getLength() {
+    mutex.lock();
+    try {
+      return head.size() + spilled;
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    backing.close();
+  }
+}
@@ -0,0 +1,146 @@
+package cn.edu.whu.lmars.toxicspider.frontier;
+
+import com.sleepycat.bind.tuple.TupleInput;
+
+import cn.edu.whu.lmars.toxicspider.url.WebURL;
+
+/**
+ * 直接读取 WebURLTupleBinding 序列化字节的轻量读取器。
+ * 构造时只解析定长的头部（docID、depth、priority 等），URL、父URL和锚文本在第一次访问时才解码，
+ * 只需要部分字段的调用者不必创建完整的 WebURL 对象（WebURL.setURL 还会解析域名）。
+ * 读取器不复制字节数组，调用者需要保证读取期间字节数组不被修改。
+ *
+ * 目前只有 DrumDeduplicator 的合并直接使用此类（分配docID只需要URL，只有新的URL才创建 WebURL）。
+ * 从 WorkQueues、MappedLogStore 取出任务时仍然通过 {@link WebURLTupleBinding#entryToObject} 为每条记录创建完整的 WebURL，
+ * 因为任务随后要按主机分配到 Frontier 的分片中并交给爬虫线程，需要 WebURL 解析出的主机和域名。
+ * 紧凑格式在这些路径上减少的是存储大小和字符串解码量，而不是对象的创建。
+ *
+ * @author REN
+ */
+public class WebURLRecord {
+
+  private final byte[] data;
+  private final int offset;
+  private final int length;
+
+  private final boolean compact;
+  private final int flags;
+  private int docid;
+  private int parentDocid;
+  private short depth;
+  private byte priority;
+
+  //变长字段的起始位置，compact 格式中依次为 父URL、URL、锚文本
+  private int stringsOffset;
+
+  private String url;
+  private String parentUrl;
+  private String anchor;
+  private boolean stringsDecoded = false;
+
+  public WebURLRecord(byte[] data) {
+    this(data, 0, data.length);
+  }
+
+  public WebURLRecord(byte[] data, int offset, int length) {
+    this.data = data;
+    this.offset = offset;
+    this.length = length;
+    TupleInput input = new TupleInput(data, offset, length);
+    input.mark(1);
+    this.compact = (length > 0) && (input.readByte() == WebURLTupleBinding.FORMAT_COMPACT);
+    if (compact) {
+      flags = input.readUnsignedByte();
+      docid = input.readPackedInt();
+      parentDocid = input.readPackedInt();
+      depth = (short) input.readPackedInt();
+      priority = input.readByte();
+      stringsOffset = input.getBufferOffset();
+    } else {
+      //旧格式的定长字段在URL之后，直接全部解码
+      input.reset();
+      flags = 0;
+      url = input.readString();
+      docid = input.readInt();
+      parentDocid = input.readInt();
+      parentUrl = input.readString();
+      depth = input.readShort();
+      priority = input.readByte();
+      anchor = input.readString();
+      stringsDecoded = true;
+    }
+  }
+
+  public int getDocid() {
+    return docid;
+  }
+
+  public int getParentDocid() {
+    return parentDocid;
+  }
+
+  public short getDepth() {
+    return depth;
+  }
+
+  public byte getPriority() {
+    return priority;
+  }
+
+  public String getURL() {
+    decodeStrings();
+    return url;
+  }
+
+  public String getParentUrl() {
+    decodeStrings();
+    return parentUrl;
+  }
+
+  public String getAnchor() {
+    decodeStrings();
+    return anchor;
+  }
+
+  /**
+   * @return 记录的字节数
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return 完整的 WebURL 对象
+   */
+  public WebURL toWebURL() {
+    WebURL webURL = new WebURL();
+    webURL.setURL(getURL());
+    webURL.setDocid(docid);
+    webURL.setParentDocid(parentDocid);
+    webURL.setParentUrl(getParentUrl());
+    webURL.setDepth(depth);
+    webURL.setPriority(priority);
+    webURL.setAnchor(getAnchor());
+    return webURL;
+  }
+
+  private void decodeStrings() {
+    if (stringsDecoded) {
+      return;
+    }
+    TupleInput input = new TupleInput(data, stringsOffset, length - (stringsOffset - offset));
+    if ((flags & WebURLTupleBinding.FLAG_PARENT_URL) != 0) {
+      parentUrl = WebURLTupleBinding.readSchemeCoded(input);
+    }
+    if ((flags & WebURLTupleBinding.FLAG_FRONT_CODED) != 0) {
+      int prefixLength = input.readPackedInt();
+      url = parentUrl.substring(0, prefixLength) + input.readString();
+    } else {
+      url = WebURLTupleBinding.readSchemeCoded(input);
+    }
+    if ((flags & WebURLTupleBinding.FLAG_ANCHOR) != 0) {
+      anchor = input.readString();
+    }
+    stringsDecoded = true;
+  }
+}
@@ -14,32 +14,108 @@ import cn.edu.whu.lmars.toxicspider.url.WebURL;
  * Its two abstract methods must be implemented by a concrete subclass to convert between tuples and key or data objects.
 	
 	WebURL 和 元组 绑定
+ *
+ * 写入使用紧凑格式：
+ * 	byte 格式版本，byte 标志位，packed int docID，packed int 父页面docID，packed int depth，byte priority，
+ * 	[父URL]，URL，[锚文本]
+ * URL 的协议头（http://、https://、以及 www.）编码为一个字节；父URL存在时，URL只保存与父URL不同的后缀（前缀编码），
+ * 同一主机的链接基本只需要保存路径部分。 不保存父URL时只保留父页面的docID。
+ * 旧格式以URL字符串开头（第一个字节不可能是格式版本号），读取时自动兼容。
  * @author REN
  *
  */
 public class WebURLTupleBinding extends TupleBinding<WebURL> {
 
+  static final byte FORMAT_COMPACT = 1;
+
+  static final int FLAG_PARENT_URL = 1;
+  static final int FLAG_ANCHOR = 1 << 1;
+  static final int FLAG_FRONT_CODED = 1 << 2;
+
+  //协议头编码，下标即编码值，0 表示没有可识别的协议头
+  private static final String[] SCHEME_PREFIXES = {"", "http://", "https://", "http://www.", "https://www."};
+
+  private final boolean storeParentUrl;
+
+  public WebURLTupleBinding() {
+    this(true);
+  }
+
+  /**
+   * @param storeParentUrl 是否保存父URL，为 false 时读取出的任务父URL为null
+   */
+  public WebURLTupleBinding(boolean storeParentUrl) {
+    this.storeParentUrl = storeParentUrl;
+  }
+
+  /**
+   * 解码为完整的 WebURL（包括解析主机和域名）。只需要部分字段时直接使用 {@link WebURLRecord}
+   */
   @Override
   public WebURL entryToObject(TupleInput input) {
-    WebURL webURL = new WebURL();
-    webURL.setURL(input.readString());
-    webURL.setDocid(input.readInt());
-    webURL.setParentDocid(input.readInt());
-    webURL.setParentUrl(input.readString());
-    webURL.setDepth(input.readShort());
-    webURL.setPriority(input.readByte());
-    webURL.setAnchor(input.readString());
-    return webURL;
+    return new WebURLRecord(input.getBufferBytes(), input.getBufferOffset(), input.available()).toWebURL();
   }
 
   @Override
   public void objectToEntry(WebURL url, TupleOutput output) {
-    output.writeString(url.getURL());
-    output.writeInt(url.getDocid());
-    output.writeInt(url.getParentDocid());
-    output.writeString(url.getParentUrl());
-    output.writeShort(url.getDepth());
+    String parentUrl = storeParentUrl ? url.getParentUrl() : null;
+    String anchor = url.getAnchor();
+    int prefixLength = (parentUrl == null) ? 0 : commonPrefixLength(parentUrl, url.getURL());
+
+    int flags = 0;
+    if (parentUrl != null) {
+      flags |= FLAG_PARENT_URL;
+    }
+    if (anchor != null) {
+      flags |= FLAG_ANCHOR;
+    }
+    if (prefixLength > 0) {
+      flags |= FLAG_FRONT_CODED;
+    }
+
+    output.writeByte(FORMAT_COMPACT);
+    output.writeUnsignedByte(flags);
+    output.writePackedInt(url.getDocid());
+    output.writePackedInt(url.getParentDocid());
+    output.writePackedInt(url.getDepth());
     output.writeByte(url.getPriority());
-    output.writeString(url.getAnchor());
+    if (parentUrl != null) {
+      writeSchemeCoded(parentUrl, output);
+    }
+    if (prefixLength > 0) {
+      output.writePackedInt(prefixLength);
+      output.writeString(url.getURL().substring(prefixLength));
+    } else {
+      writeSchemeCoded(url.getURL(), output);
+    }
+    if (anchor != null) {
+      output.writeString(anchor);
+    }
+  }
+
+  static void writeSchemeCoded(String url, TupleOutput output) {
+    int code = 0;
+    for (int i = SCHEME_PREFIXES.length - 1; i > 0; i--) {
+      if (url.startsWith(SCHEME_PREFIXES[i])) {
+        code = i;
+        break;
+      }
+    }
+    output.writeUnsignedByte(code);
+    output.writeString(url.substring(SCHEME_PREFIXES[code].length()));
+  }
+
+  static String readSchemeCoded(TupleInput input) {
+    int code = input.readUnsignedByte();
+    return SCHEME_PREFIXES[code] + input.readString();
+  }
+
+  private static int commonPrefixLength(String a, String b) {
+    int max = Math.min(a.length(), b.length());
+    int i = 0;
+    while ((i < max) && (a.charAt(i) == b.charAt(i))) {
+      i++;
+    }
+    return i;
   }
-}
\ No newline at end of file
+}
@@ -1,12 +1,16 @@
 package cn.edu.whu.lmars.toxicspider.frontier;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
@@ -15,19 +19,24 @@ import cn.edu.whu.lmars.toxicspider.url.WebURL;
 import cn.edu.whu.lmars.toxicspider.util.Util;
 
 /**
- * 工作队列
+ * 工作队列，基于 Berkeley DB JE 的 FrontierStore 实现
  * @author REN
  *
  */
-public class WorkQueues {
+public class WorkQueues implements FrontierStore {
   private final Database urlsDB;
   private final Environment env;
+  private final String dbName;
+
+  //记录数。可恢复时同时保存在 MetadataDB 中，与数据在同一个事务中更新；内存中的值只在事务提交后修改
+  private final AtomicLong length = new AtomicLong();
+  private final MetadataDB metadataDB;
 
   private final boolean resumable;
 
   private final WebURLTupleBinding webURLBinding;
 
-  protected final Object mutex = new Object();
+  protected final ReentrantLock mutex = new ReentrantLock();
 
   /**
    * 构造函数，初始化数据库和对WebURL 和 元组Tuple进行绑定
@@ -36,6 +45,16 @@ public class WorkQueues {
    * @param resumable
    */
   public WorkQueues(Environment env, String dbName, boolean resumable) {
+    this(env, dbName, resumable, new WebURLTupleBinding());
+  }
+
+  /**
+   * @param env
+   * @param dbName
+   * @param resumable
+   * @param webURLBinding 任务的序列化方式
+   */
+  public WorkQueues(Environment env, String dbName, boolean resumable, WebURLTupleBinding webURLBinding) {
     this.env = env;
     this.resumable = resumable;
     DatabaseConfig dbConfig = new DatabaseConfig();
@@ -43,7 +62,50 @@ public class WorkQueues {
     dbConfig.setTransactional(resumable);
     dbConfig.setDeferredWrite(!resumable);
     urlsDB = env.openDatabase(null, dbName, dbConfig);
-    webURLBinding = new WebURLTupleBinding();
+    this.dbName = dbName;
+    this.webURLBinding = webURLBinding;
+    if (resumable) {
+      metadataDB = new MetadataDB(env);
+      long storedLength = metadataDB.get(getLengthName());
+      if (storedLength < 0) {
+        //之前的版本没有保存记录数，遍历一次并保存
+        storedLength = urlsDB.count();
+        metadataDB.set(null, getLengthName(), storedLength);
+      }
+      length.set(storedLength);
+    } else {
+      metadataDB = null;
+      length.set(urlsDB.count());
+    }
+  }
+
+  private String getLengthName() {
+    return "Length-" + dbName;
+  }
+
+  /**
+   * 在事务中记录记录数的变化，需要在修改数据的同一个事务中调用，事务提交后再调用 lengthCommitted
+   */
+  private void updateLength(Transaction txn, long delta) {
+    if ((metadataDB != null) && (delta != 0)) {
+      metadataDB.add(txn, getLengthName(), delta);
+    }
+  }
+
+  private void lengthCommitted(long delta) {
+    length.addAndGet(delta);
+  }
+
+  /**
+   * 写入一条记录，同一个key已经存在时覆盖
+   * @return 是否新增了记录
+   */
+  private boolean putRecord(Transaction txn, DatabaseEntry key, DatabaseEntry value) {
+    if (urlsDB.putNoOverwrite(txn, key, value) == OperationStatus.SUCCESS) {
+      return true;
+    }
+    urlsDB.put(txn, key, value);
+    return false;
   }
 
   /**
@@ -65,6 +127,16 @@ public class WorkQueues {
     }
   }
 
+  /**
+   * 事务回滚
+   * @param tnx
+   */
+  protected static void abort(Transaction tnx) {
+    if (tnx != null) {
+      tnx.abort();
+    }
+  }
+
   /**
    * 开启光标
    * @param txn
@@ -79,9 +151,10 @@ public class WorkQueues {
    * @param max 最大记录数
    * @return 小于等于最大记录数的WebURL对象集合
    */
+  @Override
   public List<WebURL> get(int max) {
-   
-	  synchronized (mutex) {
+    mutex.lock();
+    try {
       List<WebURL> results = new ArrayList<>(max);
       DatabaseEntry key = new DatabaseEntry();
       DatabaseEntry value = new DatabaseEntry();
@@ -99,6 +172,8 @@ public class WorkQueues {
       }
       commit(txn);
       return results;
+    } finally {
+      mutex.unlock();
     }
   }
 
@@ -106,21 +181,181 @@ public class WorkQueues {
    * 从数据库前面开始，删除指定数量的数据
    * @param count
    */
+  @Override
   public void delete(int count) {
-    synchronized (mutex) {
+    mutex.lock();
+    try {
       DatabaseEntry key = new DatabaseEntry();
       DatabaseEntry value = new DatabaseEntry();
+      int matches = 0;
       Transaction txn = beginTransaction();
       try (Cursor cursor = openCursor(txn)) {
         OperationStatus result = cursor.getFirst(key, value, null);
-        int matches = 0;
         while ((matches < count) && (result == OperationStatus.SUCCESS)) {
           cursor.delete();
           matches++;
           result = cursor.getNext(key, value, null);
         }
+        updateLength(txn, -matches);
       }
       commit(txn);
+      lengthCommitted(-matches);
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  /**
+   * 从数据库前面开始取出最多 max 条任务并删除，同时把它们原样写入 target。
+   * target 是同一个环境中的 WorkQueues 时，读取、删除和转移在同一次光标遍历和同一个事务中完成，
+   * 相当于 get、delete 和逐条 put 的合并；否则在提交之后批量写入 target。
+   * @param max 最大记录数
+   * @param target 接收取出任务的存储，为null时只取出不转移
+   * @return 小于等于最大记录数的WebURL对象集合
+   */
+  @Override
+  public List<WebURL> take(int max, FrontierStore target) {
+    List<WebURL> results = new ArrayList<>(max);
+    transfer(max, target, results);
+    return results;
+  }
+
+  @Override
+  public int moveTo(FrontierStore target, int max) {
+    if ((target instanceof WorkQueues) && (((WorkQueues) target).env == env)) {
+      return transfer(max, target, null);
+    }
+    return take(max, target).size();
+  }
+
+  /**
+   * 一次遍历取出并删除排在最前面的任务。target 与本数据库在同一个环境中时，直接在同一个事务中复制原始记录，
+   * 此时 results 为null则不解码任务
+   * @return 取出的任务数
+   */
+  private int transfer(int max, FrontierStore target, List<WebURL> results) {
+    WorkQueues sameEnvTarget = null;
+    if ((target instanceof WorkQueues) && (((WorkQueues) target).env == env)) {
+      sameEnvTarget = (WorkQueues) target;
+    }
+    List<WebURL> decoded = (results != null) ? results : new ArrayList<WebURL>();
+    int count = 0;
+    int matches = 0;
+    int inserted = 0;
+    mutex.lock();
+    //同一个事务中写入 target，也要持有 target 的锁，保证每个数据库同一时间只有一个写入者（非可恢复模式下环境没有开启锁）。
+    //加锁顺序总是先源再目标，两个存储之间的转移不会同时反向进行
+    if (sameEnvTarget != null) {
+      sameEnvTarget.mutex.lock();
+    }
+    try {
+      DatabaseEntry key = new DatabaseEntry();
+      DatabaseEntry value = new DatabaseEntry();
+      Transaction txn = beginTransaction();
+      try (Cursor cursor = openCursor(txn)) {
+        OperationStatus result = cursor.getFirst(key, value, null);
+        while ((matches < max) && (result == OperationStatus.SUCCESS)) {
+          if (value.getData().length > 0) {
+            if ((results != null) || (sameEnvTarget == null)) {
+              decoded.add(webURLBinding.entryToObject(value));
+            }
+            if ((sameEnvTarget != null) && sameEnvTarget.putRecord(txn, key, value)) {
+              inserted++;
+            }
+            count++;
+          }
+          cursor.delete();
+          matches++;
+          result = cursor.getNext(key, value, null);
+        }
+        updateLength(txn, -matches);
+        if (sameEnvTarget != null) {
+          sameEnvTarget.updateLength(txn, inserted);
+        }
+      } catch (DatabaseException e) {
+        abort(txn);
+        throw e;
+      }
+      commit(txn);
+      lengthCommitted(-matches);
+      if (sameEnvTarget != null) {
+        sameEnvTarget.lengthCommitted(inserted);
+      }
+    } finally {
+      if (sameEnvTarget != null) {
+        sameEnvTarget.mutex.unlock();
+      }
+      mutex.unlock();
+    }
+    if ((target != null) && (sameEnvTarget == null) && !decoded.isEmpty()) {
+      target.putAll(decoded);
+    }
+    return count;
+  }
+
+  /**
+   * 删除指定webURL 对应的数据库中的值
+   * @param webUrl
+   * @return
+   */
+  @Override
+  public boolean remove(WebURL webUrl) {
+    mutex.lock();
+    try {
+      DatabaseEntry key = getDatabaseEntryKey(webUrl);
+      DatabaseEntry value = new DatabaseEntry();
+      boolean removed = false;
+      Transaction txn = beginTransaction();
+      try (Cursor cursor = openCursor(txn)) {
+        OperationStatus result = cursor.getSearchKey(key, value, null);
+
+        if (result == OperationStatus.SUCCESS) {
+          result = cursor.delete();
+          if (result == OperationStatus.SUCCESS) {
+            removed = true;
+            updateLength(txn, -1);
+          }
+        }
+      } finally {
+        commit(txn);
+      }
+      if (removed) {
+        lengthCommitted(-1);
+      }
+      return removed;
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  /**
+   * 在一个事务中批量删除指定的任务
+   * @param webUrls
+   * @return 实际删除的任务数
+   */
+  @Override
+  public int removeAll(List<WebURL> webUrls) {
+    mutex.lock();
+    try {
+      int removed = 0;
+      DatabaseEntry value = new DatabaseEntry();
+      value.setPartial(0, 0, true); //只需要定位，不读取数据
+      Transaction txn = beginTransaction();
+      try (Cursor cursor = openCursor(txn)) {
+        for (WebURL webUrl : webUrls) {
+          if ((cursor.getSearchKey(getDatabaseEntryKey(webUrl), value, null) == OperationStatus.SUCCESS) &&
+              (cursor.delete() == OperationStatus.SUCCESS)) {
+            removed++;
+          }
+        }
+        updateLength(txn, -removed);
+      } finally {
+        commit(txn);
+      }
+      lengthCommitted(-removed);
+      return removed;
+    } finally {
+      mutex.unlock();
     }
   }
 
@@ -144,26 +379,58 @@ public class WorkQueues {
    * 把WebURL对象转化为 DatabaseEntry类型value值，并存储进数据库中
    * @param url
    */
+  @Override
   public void put(WebURL url) {
-    DatabaseEntry value = new DatabaseEntry();
-    webURLBinding.objectToEntry(url, value);//转WebURL为EntrySet
-    Transaction txn = beginTransaction();
-    urlsDB.put(txn, getDatabaseEntryKey(url), value);
-    commit(txn); 
+    putAll(Collections.singletonList(url));
   }
 
   /**
-   * 获取Berkeley 数据库中数据记录数量
+   * 在一个事务中批量存储WebURL对象，整批只提交一次。
+   * @param urls
+   */
+  @Override
+  public void putAll(List<WebURL> urls) {
+    mutex.lock();
+    try {
+      DatabaseEntry value = new DatabaseEntry();
+      int inserted = 0;
+      Transaction txn = beginTransaction();
+      try {
+        for (WebURL url : urls) {
+          webURLBinding.objectToEntry(url, value);//转WebURL为EntrySet
+          if (putRecord(txn, getDatabaseEntryKey(url), value)) {
+            inserted++;
+          }
+        }
+        updateLength(txn, inserted);
+      } catch (DatabaseException e) {
+        abort(txn);
+        throw e;
+      }
+      commit(txn);
+      lengthCommitted(inserted);
+    } finally {
+      mutex.unlock();
+    }
+  }
+
+  /**
+   * 获取数据库中数据记录数量。记录数随每次写入维护，不遍历数据库
    * @return
    */
+  @Override
   public long getLength() {
-    return urlsDB.count();
+    return length.get();
   }
 
   /**
    * 关闭数据库连接
    */
+  @Override
   public void close() {
     urlsDB.close();
+    if (metadataDB != null) {
+      metadataDB.close();
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+package cn.edu.whu.lmars.toxicspider.url;
+
+import java.nio.charset.Charset;
+
+/**
+ * URL指纹工具类。
+ * 把URL转换为定长的 12 字节key：前 4 个字节为主机名的哈希，后 8 个字节为整个URL的 64 位指纹。
+ * 以主机哈希作为前缀，同一主机的URL在 B-tree 中相邻存放，访问具有局部性。
+ *
+ * @author REN
+ */
+public class URLFingerprint {
+
+  public static final int KEY_LENGTH = 12;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private URLFingerprint() {
+  }
+
+  /**
+   * @param url 规范化之后的URL
+   * @return 12 字节的指纹key
+   */
+  public static byte[] getKey(String url) {
+    byte[] key = new byte[KEY_LENGTH];
+    int hostHash = (int) (murmurHash64(getHost(url).getBytes(UTF8)) >>> 32);
+    long fingerprint = fingerprint(url);
+    for (int i = 0; i < 4; i++) {
+      key[i] = (byte) (hostHash >>> ((3 - i) * 8));
+    }
+    for (int i = 0; i < 8; i++) {
+      key[4 + i] = (byte) (fingerprint >>> ((7 - i) * 8));
+    }
+    return key;
+  }
+
+  /**
+   * @param url
+   * @return URL的 64 位指纹
+   */
+  public static long fingerprint(String url) {
+    return murmurHash64(url.getBytes(UTF8));
+  }
+
+  /**
+   * 从URL中取出主机部分（可能包含端口号），与 WebURL.getHost() 一致。
+   */
+  static String getHost(String url) {
+    int hostStartIdx = url.indexOf("//") + 2;
+    int hostEndIdx = url.indexOf('/', hostStartIdx);
+    hostEndIdx = (hostEndIdx > hostStartIdx) ? hostEndIdx : url.length();
+    return url.substring(hostStartIdx, hostEndIdx);
+  }
+
+  /**
+   * MurmurHash64A
+   */
+  static long murmurHash64(byte[] data) {
+    final long m = 0xc6a4a7935bd1e995L;
+    final int r = 47;
+    int length = data.length;
+    long h = 0xe17a1465L ^ (length * m);
+
+    int blocks = length / 8;
+    for (int i = 0; i < blocks; i++) {
+      int offset = i * 8;
+      long k = (data[offset] & 0xffL) | ((data[offset + 1] & 0xffL) << 8) | ((data[offset + 2] & 0xffL) << 16) |
+               ((data[offset + 3] & 0xffL) << 24) | ((data[offset + 4] & 0xffL) << 32) |
+               ((data[offset + 5] & 0xffL) << 40) | ((data[offset + 6] & 0xffL) << 48) |
+               ((data[offset + 7] & 0xffL) << 56);
+      k *= m;
+      k ^= k >>> r;
+      k *= m;
+      h ^= k;
+      h *= m;
+    }
+
+    int tail = blocks * 8;
+    switch (length - tail) {
+      case 7:
+        h ^= (data[tail + 6] & 0xffL) << 48;
+      case 6:
+        h ^= (data[tail + 5] & 0xffL) << 40;
+      case 5:
+        h ^= (data[tail + 4] & 0xffL) << 32;
+      case 4:
+        h ^= (data[tail + 3] & 0xffL) << 24;
+      case 3:
+        h ^= (data[tail + 2] & 0xffL) << 16;
+      case 2:
+        h ^= (data[tail + 1] & 0xffL) << 8;
+      case 1:
+        h ^= (data[tail] & 0xffL);
+        h *= m;
+      default:
+        break;
+    }
+
+    h ^= h >>> r;
+    h *= m;
+    h ^= h >>> r;
+    return h;
+  }
+}
@@ -22,6 +22,7 @@ public class WebURL implements Serializable {
   private int parentDocid; //父页面的文档编号
   private String parentUrl; //父网页的URL地址
   private short depth; //当前URL的爬取深度
+  private String host; //主机名（包含端口号）
   private String domain; //域名
   private String subDomain; //子域名
   private String path; //URL路径
@@ -55,6 +56,7 @@ public class WebURL implements Serializable {
     int domainEndIdx = url.indexOf('/', domainStartIdx);
     domainEndIdx = (domainEndIdx > domainStartIdx) ? domainEndIdx : url.length();
     domain = url.substring(domainStartIdx, domainEndIdx);
+    host = domain;
     subDomain = "";
     String[] parts = domain.split("\\.");
     /**
@@ -128,6 +130,15 @@ public class WebURL implements Serializable {
     this.depth = depth;
   }
 
+  /**
+   * @return
+   * 		此Url的主机名，如果URL中带有端口号，则包含端口号。
+   * 		例如 'http://www.lmars.whu.edu.cn:8080/index.jsp' 主机名为：'www.lmars.whu.edu.cn:8080'
+   */
+  public String getHost() {
+    return host;
+  }
+
   /**
    * @return
    * 		此Url的域名
@@ -0,0 +1,132 @@
+package cn.edu.whu.lmars.toxicspider.util;
+
+import java.util.Arrays;
+
+/**
+ * 布隆过滤器。
+ * 用于快速判断一个元素“一定不存在”或者“可能存在”，不会漏判，但有一定的误判率。
+ * 位数组大小和哈希函数个数根据预计元素数量和期望误判率计算。
+ * 此类不是线程安全的。
+ *
+ * @author REN
+ */
+public class BloomFilter {
+
+  private final long[] bits;
+  private final long numBits;
+  private final int numHashes;
+  private long insertions = 0;
+
+  /**
+   * @param expectedInsertions 预计插入的元素数量
+   * @param falsePositiveRate 期望的误判率，取值 (0, 1)
+   */
+  public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    if (expectedInsertions <= 0) {
+      expectedInsertions = 1;
+    }
+    if ((falsePositiveRate <= 0) || (falsePositiveRate >= 1)) {
+      throw new IllegalArgumentException("False positive rate should be in (0, 1): " + falsePositiveRate);
+    }
+    // m = -n * ln(p) / (ln2)^2, k = m / n * ln2
+    long m = (long) (-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    m = Math.max(64, Math.min(m, (long) Integer.MAX_VALUE * 64));
+    this.bits = new long[(int) ((m + 63) >>> 6)];
+    this.numBits = (long) bits.length * 64;
+    this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+  }
+
+  /**
+   * 添加一个元素。
+   * @param data
+   * @return 如果有位被修改（即此元素之前一定不存在）返回 true
+   */
+  public boolean put(byte[] data) {
+    long hash1 = hash(data);
+    long hash2 = mix(hash1);
+    boolean changed = false;
+    long combined = hash1;
+    for (int i = 0; i < numHashes; i++) {
+      long index = (combined & Long.MAX_VALUE) % numBits;
+      int word = (int) (index >>> 6);
+      long mask = 1L << index;
+      if ((bits[word] & mask) == 0) {
+        bits[word] |= mask;
+        changed = true;
+      }
+      combined += hash2;
+    }
+    if (changed) {
+      insertions++;
+    }
+    return changed;
+  }
+
+  /**
+   * @param data
+   * @return 返回 false 表示此元素一定不存在；返回 true 表示可能存在
+   */
+  public boolean mightContain(byte[] data) {
+    long hash1 = hash(data);
+    long hash2 = mix(hash1);
+    long combined = hash1;
+    for (int i = 0; i < numHashes; i++) {
+      long index = (combined & Long.MAX_VALUE) % numBits;
+      if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+        return false;
+      }
+      combined += hash2;
+    }
+    return true;
+  }
+
+  /**
+   * @return 根据当前插入的元素数量估算的误判率
+   */
+  public double getExpectedFalsePositiveRate() {
+    return Math.pow(1 - Math.exp(-(double) numHashes * insertions / numBits), numHashes);
+  }
+
+  /**
+   * @return 已插入的元素数量
+   */
+  public long getInsertions() {
+    return insertions;
+  }
+
+  /**
+   * @return 位数组占用的字节数
+   */
+  public long getSizeInBytes() {
+    return (long) bits.length * 8;
+  }
+
+  /**
+   * 清空过滤器。
+   */
+  public void clear() {
+    Arrays.fill(bits, 0L);
+    insertions = 0;
+  }
+
+  /**
+   * 64 位 FNV-1a 哈希。
+   */
+  private static long hash(byte[] data) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : data) {
+      hash ^= (b & 0xff);
+      hash *= 0x100000001b3L;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * SplitMix64 的混合函数，用于打散哈希值并生成第二个哈希值。
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}